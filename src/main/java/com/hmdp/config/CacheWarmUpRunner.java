@@ -0,0 +1,77 @@
+package com.hmdp.config;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheUtil;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启动预热：分页读取 tb_shop 写入逻辑过期缓存
+ * 预热是尽力而为的：ApplicationRunner 执行时内嵌 Tomcat 已经在接收请求，预热和线上流量同时进行，
+ * 还没预热到的商铺第一次访问时由 CacheUtil 同步回源数据库（本节点并发请求合并为一次），预热只是缩短这段窗口，不保证第一批请求全部命中缓存
+ */
+@Slf4j
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+
+    @Value("${hmdp.cache.warm-up.enabled:true}")
+    private boolean enabled;
+
+    // 每页读取的商铺数量，每页用一次pipeline写入redis
+    @Value("${hmdp.cache.warm-up.page-size:500}")
+    private int pageSize;
+
+    @Autowired
+    private IShopService shopService;
+
+    @Autowired
+    private CacheUtil cacheUtil;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        long lastId = 0;
+        int count = 0;
+        try {
+            while (true) {
+                // 按id分页，避免 limit offset 越往后越慢
+                List<Shop> shops = shopService.query()
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + pageSize)
+                        .list();
+                if (shops.isEmpty()) {
+                    break;
+                }
+                Map<String, Object> values = new HashMap<>(shops.size() * 2);
+                for (Shop shop : shops) {
+                    values.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop);
+                }
+                cacheUtil.setAllWithLogicalExpire(values, RedisConstants.CACHE_SHOP_TTL, TimeUnit.SECONDS);
+                count += shops.size();
+                lastId = shops.get(shops.size() - 1).getId();
+                if (shops.size() < pageSize) {
+                    break;
+                }
+            }
+            log.info("商铺缓存预热完成，共{}条，耗时{}ms", count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            // 预热失败不影响启动，没有写入的商铺在第一次请求时从数据库加载
+            log.error("商铺缓存预热失败，已写入{}条", count, e);
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.RequestRateLimiter;
+import com.hmdp.utils.SignedTokenSessions;
+import com.hmdp.utils.TokenSessionCache;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
@@ -12,8 +17,21 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 public class MvcConfig implements WebMvcConfigurer {
 
     @Autowired
-    private StringRedisTemplate redisTemplate;
+    private TokenSessionCache tokenSessionCache;
 
+    @Autowired
+    private SignedTokenSessions signedTokenSessions;
+
+    @Autowired
+    private RequestRateLimiter requestRateLimiter;
+
+    // 可以访问运维接口的用户id，逗号分隔
+    @Value("${hmdp.admin.user-ids:}")
+    private String adminUserIds;
+
+    // 可信的反向代理ip，逗号分隔，限流时只有这些代理转发的请求才使用 X-Real-IP
+    @Value("${hmdp.rate-limit.trusted-proxies:}")
+    private String trustedProxies;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -28,8 +46,19 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",
                         "/voucher/**"
                 ).order(1);
+        // 运维接口只允许管理员访问
+        registry.addInterceptor(new AdminInterceptor(adminUserIds))
+                .addPathPatterns("/admin/**")
+                .order(2);
         // token刷新拦截请，拦截所有请求
-        registry.addInterceptor(new RefreshTokenInterceptor(redisTemplate))
-                .addPathPatterns("/**").order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(tokenSessionCache, signedTokenSessions))
+                .addPathPatterns("/**")
+                // 商铺类型列表直接返回内存快照，不需要刷新登录状态
+                .excludePathPatterns("/shop-type/list")
+                .order(0);
+        // 限流拦截器，只处理带 @RateLimit 注解的接口；在登录校验之后，可以按用户限流
+        registry.addInterceptor(new RateLimitInterceptor(requestRateLimiter, trustedProxies))
+                .addPathPatterns("/**")
+                .order(3);
     }
 }
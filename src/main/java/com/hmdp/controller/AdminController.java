@@ -0,0 +1,201 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.service.IUserService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SignedTokenSessions;
+import com.hmdp.utils.CacheOutboxRelay;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.CacheRefreshScheduler;
+import com.hmdp.utils.CacheUtil;
+import com.hmdp.utils.DbLoadLimiter;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.RequestRateLimiter;
+import com.hmdp.utils.SessionMemorySampler;
+import com.hmdp.utils.TokenSessionCache;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 运维接口：缓存等组件的运行指标
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Resource
+    private CacheUtil cacheUtil;
+
+    @Resource
+    private CacheRefreshScheduler cacheRefreshScheduler;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private CacheOutboxRelay cacheOutboxRelay;
+
+    @Resource
+    private CacheRebuildExecutor cacheRebuildExecutor;
+
+    @Resource
+    private DbLoadLimiter dbLoadLimiter;
+
+    @Resource
+    private TokenSessionCache tokenSessionCache;
+
+    @Resource
+    private SignedTokenSessions signedTokenSessions;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private SessionMemorySampler sessionMemorySampler;
+
+    @Resource
+    private RequestRateLimiter requestRateLimiter;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    /**
+     * 各个key前缀的缓存命中情况
+     * @return 命中统计
+     */
+    @GetMapping("/cache/stats")
+    public Result queryCacheStats() {
+        return Result.ok(cacheUtil.queryStats());
+    }
+
+    /**
+     * 逻辑过期缓存的提前刷新情况
+     * @return 记录的key数量、刷新数量
+     */
+    @GetMapping("/cache/refresh/stats")
+    public Result queryCacheRefreshStats() {
+        return Result.ok(cacheRefreshScheduler.queryStats());
+    }
+
+    /**
+     * 缓存删除发件箱的积压和延迟
+     * @return 未完成、失败的事件数量，提交到删除缓存的延迟
+     */
+    @GetMapping("/cache/outbox/stats")
+    public Result queryCacheOutboxStats() {
+        return Result.ok(cacheOutboxRelay.queryStats());
+    }
+
+    /**
+     * 缓存重建线程池
+     * @return 队列长度、重建耗时、失败和丢弃数量
+     */
+    @GetMapping("/cache/rebuild/stats")
+    public Result queryCacheRebuildStats() {
+        return Result.ok(cacheRebuildExecutor.queryStats());
+    }
+
+    /**
+     * 缓存未命中时查询数据库的限流情况
+     * @return 加载次数、等待次数、被拒绝和跳过的数量
+     */
+    @GetMapping("/cache/db-load/stats")
+    public Result queryDbLoadStats() {
+        return Result.ok(dbLoadLimiter.queryStats());
+    }
+
+    /**
+     * 本节点的热点key
+     * @return 热点key及访问次数估计
+     */
+    @GetMapping("/cache/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.report());
+    }
+
+    /**
+     * 登录会话的情况
+     * @return redis会话：本地命中、redis读取、续期次数，平均每次请求访问redis的次数；签名token：签发、校验、续期、吊销数量
+     */
+    @GetMapping("/session/stats")
+    public Result querySessionStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("redis", tokenSessionCache.queryStats());
+        stats.put("signed", signedTokenSessions.queryStats());
+        return Result.ok(stats);
+    }
+
+    /**
+     * 抽样估算登录会话占用的redis内存
+     * @param samples 最多扫描的key数量，限制在 1 ~ 100000
+     * @return 会话数量、平均大小和总大小的估计，原格式和紧凑格式分别统计
+     */
+    @GetMapping("/session/memory")
+    public Result querySessionMemory(@RequestParam(value = "samples", defaultValue = "10000") Integer samples) {
+        return Result.ok(sessionMemorySampler.sample(samples));
+    }
+
+    /**
+     * 踢下线：删除token对应的会话，所有节点同时删除本地缓存
+     * @param token 登录token
+     * @return 无
+     */
+    @PostMapping("/session/kick")
+    public Result kickOut(@RequestParam("token") String token) {
+        return userService.logout(token);
+    }
+
+    /**
+     * 各个限流规则的放行和拒绝次数
+     * @return 规则名 -> 放行、本地拒绝、redis拒绝、redis异常次数
+     */
+    @GetMapping("/rate-limit/stats")
+    public Result queryRateLimitStats() {
+        return Result.ok(requestRateLimiter.queryStats());
+    }
+
+    /**
+     * 订单消息队列的消费情况：消费速率、积压数量、消费延迟
+     * @return 指标
+     */
+    @GetMapping("/seckill/stream/stats")
+    public Result queryOrderStreamStats() {
+        return Result.ok(voucherOrderService.queryOrderStreamStats());
+    }
+
+    /**
+     * 结束秒杀，收回redis中的剩余库存并与数据库对账
+     * @param voucherId 优惠券id
+     * @return 对账结果
+     */
+    @PostMapping("/seckill/{id}/end")
+    public Result endSeckillVoucher(@PathVariable("id") Long voucherId) {
+        return voucherService.endSeckillVoucher(voucherId);
+    }
+
+    /**
+     * 修改 tb_shop_type 后调用，各节点重建商铺类型快照
+     * @return 无
+     */
+    @PostMapping("/shop-type/refresh")
+    public Result refreshShopTypes() {
+        shopTypeService.refreshShopTypes();
+        return Result.ok();
+    }
+}
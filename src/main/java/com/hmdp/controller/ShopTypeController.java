@@ -1,15 +1,15 @@
 package com.hmdp.controller;
 
 
-import com.hmdp.dto.Result;
-import com.hmdp.entity.ShopType;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.service.IShopTypeService;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -26,14 +26,16 @@ public class ShopTypeController {
     private IShopTypeService typeService;
 
     /**
-     * shoptype 常用，需要做成缓存保存到redis中
+     * shoptype 常用，直接返回内存快照中序列化好的响应，不访问数据库和redis
+     * 请求头 If-None-Match 与ETag一致时返回304
      * @return
      */
     @GetMapping("list")
-    public Result queryTypeList() {
-        List<ShopType> typeList = typeService
-                .query().orderByAsc("sort").list();
-
-        return typeService.listForShop();
+    public ResponseEntity<byte[]> queryTypeList() {
+        ShopTypeSnapshot snapshot = typeService.getSnapshot();
+        return ResponseEntity.ok()
+                .eTag(snapshot.getEtag())
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(snapshot.getBody());
     }
 }
@@ -3,6 +3,7 @@ package com.hmdp.controller;
 import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
+import com.hmdp.utils.RateLimit;
 import com.hmdp.utils.SystemConstants;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
@@ -17,6 +18,7 @@ import java.util.UUID;
 @RequestMapping("upload")
 public class UploadController {
 
+    @RateLimit(name = "upload", key = RateLimit.KeyType.USER_OR_IP, permitsPerSecond = 1, burst = 5)
     @PostMapping("blog")
     public Result uploadImage(@RequestParam("file") MultipartFile image) {
         try {
@@ -0,0 +1,30 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 商铺类型列表的快照，创建后不再修改
+ * 同时保存序列化好的响应和ETag，接口直接返回，不需要访问数据库和redis
+ */
+@Getter
+@AllArgsConstructor
+public class ShopTypeSnapshot {
+
+    /**
+     * 对应的redis版本号
+     */
+    private final long version;
+
+    private final List<ShopType> shopTypes;
+
+    /**
+     * Result.ok(shopTypes) 序列化后的json
+     */
+    private final byte[] body;
+
+    private final String etag;
+}
@@ -0,0 +1,86 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ * 缓存删除事件，与数据修改写在同一个事务中，提交后由后台删除缓存
+ * </p>
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_cache_outbox")
+public class CacheOutbox implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 待删除
+     */
+    public static final int STATUS_PENDING = 0;
+
+    /**
+     * 已删除，等待延迟双删
+     */
+    public static final int STATUS_DELETED = 1;
+
+    /**
+     * 完成
+     */
+    public static final int STATUS_DONE = 2;
+
+    /**
+     * 重试次数用尽
+     */
+    public static final int STATUS_FAILED = 3;
+
+    /**
+     * 主键
+     */
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * 需要删除的缓存key
+     */
+    private String cacheKey;
+
+    /**
+     * 状态，0：待删除；1：已删除，等待延迟双删；2：完成；3：重试次数用尽
+     */
+    private Integer status;
+
+    /**
+     * 失败次数
+     */
+    private Integer attempts;
+
+    /**
+     * 下一次处理的时间，处理中的事件为认领的到期时间
+     */
+    private LocalDateTime nextTime;
+
+    /**
+     * 最近一次认领该事件的节点和批次
+     */
+    private String owner;
+
+    /**
+     * 创建时间
+     */
+    private LocalDateTime createTime;
+
+    /**
+     * 第一次删除成功的时间
+     */
+    private LocalDateTime firstDeleteTime;
+}
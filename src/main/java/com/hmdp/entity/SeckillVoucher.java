@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 初始库存，结束秒杀对账使用
+     */
+    private Integer initialStock;
+
     /**
      * 创建时间
      */
@@ -17,4 +17,8 @@ public interface IShopService extends IService<Shop> {
     Result queryShopById(Long id);
 
     Result updateByShop(Shop shop);
+
+    Result queryShopByType(Integer typeId, Integer current);
+
+    Result queryShopByName(String name, Integer current);
 }
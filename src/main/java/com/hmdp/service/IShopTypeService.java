@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -15,4 +16,14 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopTypeService extends IService<ShopType> {
 
     Result listForShop();
+
+    /**
+     * 商铺类型列表的内存快照
+     */
+    ShopTypeSnapshot getSnapshot();
+
+    /**
+     * 修改商铺类型后调用，各节点在下一次检查版本号时重建快照
+     */
+    void refreshShopTypes();
 }
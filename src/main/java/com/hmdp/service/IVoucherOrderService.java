@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +20,10 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckill(Long voucherId);
 
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    Map<String, Object> queryOrderStreamStats();
+
+    Map<String, Long> queryVoucherOrderBacklog(Long voucherId, int shards);
 }
@@ -4,28 +4,36 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.math.MathUtil;
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheOutboxRelay;
+import com.hmdp.utils.CacheRefreshScheduler;
 import com.hmdp.utils.CacheUtil;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.SystemConstants;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.cache.CacheProperties;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
 import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -44,8 +52,43 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Autowired
     private CacheUtil cacheUtil;
 
-    // 创建线程池
-    private static final ExecutorService CACHE_REBUIld__EXECTOR= Executors.newFixedThreadPool(10);
+    @Autowired
+    private IdBloomFilter idBloomFilter;
+
+    @Autowired
+    private CacheRefreshScheduler cacheRefreshScheduler;
+
+    @Autowired
+    private CacheOutboxRelay cacheOutboxRelay;
+
+    private static final String SHOP_CACHE_MODE_XFETCH = "xfetch";
+
+    // 商铺详情的缓存方式：logical 逻辑过期，xfetch 概率提前刷新
+    @Value("${hmdp.cache.shop-mode:logical}")
+    private String shopCacheMode;
+
+    /**
+     * 商铺缓存以更新时间作为版本号，在逻辑过期前由调度器批量刷新
+     */
+    @PostConstruct
+    private void registerCache() {
+        cacheUtil.registerVersion(Shop.class, Shop::getUpdateTime);
+        cacheRefreshScheduler.<Long, Shop>register(RedisConstants.CACHE_SHOP_KEY, Long::valueOf,
+                ids -> listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                RedisConstants.CACHE_SHOP_TTL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 保存后把新id加入布隆过滤器，避免新数据被当作不存在
+     */
+    @Override
+    public boolean save(Shop entity) {
+        boolean saved = super.save(entity);
+        if (saved) {
+            idBloomFilter.add(IdBloomFilter.SHOP, entity.getId());
+        }
+        return saved;
+    }
 
     /**
      * 使用空解决redis缓存穿透问题，使用互斥锁解决缓存击穿
@@ -58,9 +101,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 缓存穿透
 
         // 使用互斥锁解决缓存击穿,提取出的方法
-        Shop shop = cacheUtil.queryWithLogicalExpire(id, RedisConstants.CACHE_SHOP_KEY, Shop.class, id2 -> {
-            return getById(id2);
-        }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.SECONDS);
+        Shop shop;
+        if (SHOP_CACHE_MODE_XFETCH.equals(shopCacheMode)) {
+            // 概率提前刷新
+            shop = cacheUtil.queryWithEarlyRefresh(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                    this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.SECONDS);
+        } else {
+            shop = cacheUtil.queryWithLogicalExpire(id, RedisConstants.CACHE_SHOP_KEY, Shop.class, id2 -> {
+                return getById(id2);
+            }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.SECONDS);
+        }
 
         if (Objects.isNull(shop)){
             return Result.fail("店铺不存在！");
@@ -70,7 +120,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 缓存击穿，使用提取出的方法解决
        /* Shop shop = cacheUtil.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, id2 -> {
             return getById(id2);
-        }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.SECONDS);
 
         if (Objects.isNull(shop)){
             return Result.fail("店铺不存在！");
@@ -98,6 +148,12 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     // 逻辑过期
 
     public Shop queryWithLogicalExpire(Long id){
+        // 缓存的序列化格式由 CacheUtil 统一处理（兼容二进制和json），这里直接委托
+        return cacheUtil.queryWithLogicalExpire(id, RedisConstants.CACHE_SHOP_KEY, Shop.class,
+                this::getById, 20L, TimeUnit.SECONDS);
+    }
+
+    /*public Shop queryWithLogicalExpire(Long id){
         // 从缓存中获取商铺
         String key = RedisConstants.CACHE_SHOP_KEY+id;
         String shopJson = redisTemplate.opsForValue().get(key);
@@ -142,7 +198,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return  shop;
 
 
-    }
+    }*/
 
     /**
      * 逻辑时间，数据预热
@@ -154,12 +210,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         Thread.sleep(200);
         // 1:查询店铺数据
         Shop shop = getById(id);
-        // 3:封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 4:写入redis
-        redisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(redisData));
+        // 3:封装逻辑过期时间，写入redis
+        cacheUtil.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY+id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
     /**
@@ -168,62 +220,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @return
      */
     public Shop queryWithPassThrough(Long id){
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 1: 从redis查询商铺缓存
-        String shopJson = redisTemplate.opsForValue().get(key);
-        // 2: 判断是否存在
-        if(StringUtils.hasText(shopJson)){
-            // 3: 存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-
-        // 如果存入的是空值(解决缓存击穿)，返回错误
-        if("".equals(shopJson)){
-            return null;
-        }
-
-        // 4: 不存在，根据id查询数据库
-
-        // 使用互斥锁解决缓存穿透问题
-
-        // 4.1: 获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY+id;
-        boolean flag = tryLock(lockKey);
-
-        Shop shop = null;
-        // 4.2 线程没有获取到，休眠一段时间，再从缓存查
-
-        try {
-            if (!flag) {
-                Thread.sleep(50);
-                // 递归，直到从缓存中查取到数据或者拿到互斥锁
-                return queryWithPassThrough(id);
-            }
-
-            // 4.3 线程成功获取到互斥锁，查询数据库并写入redis中。释放互斥锁
-
-             shop = getById(id);
-
-            // 模拟重建延时
-            Thread.sleep(200);
-
-            // 5: 数据库不存在(解决缓存击穿,保存在redis中，设置有效期2 min)，报错
-            if (Objects.isNull(shop)) {
-                redisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            // 6: 存在，写入redis中，并把结果返回给前端
-            redisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        }catch (InterruptedException e){
-            throw new RuntimeException(e);
-        }finally {
-            // 释放互斥锁
-            deleteLock(lockKey);
-        }
-        return shop;
-
+        // 互斥锁重建已经移到 CacheUtil 中：同一节点的并发请求合并为一次加载，等待者不再休眠递归
+        return cacheUtil.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.SECONDS);
     }
 
     /**
@@ -256,9 +255,65 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if(Objects.isNull(shop.getId())){
             return Result.fail("该店铺不存在");
         }
-        updateById(shop);
+        // 更新时间就是缓存的版本号，由数据库设置而不是使用请求中的值
+        // 数据库只保存到秒，至少比原来的更新时间大1秒，同一秒内的多次修改版本号也严格递增（行锁保证串行）
+        shop.setUpdateTime(null);
+        update(shop, new UpdateWrapper<Shop>()
+                .eq("id", shop.getId())
+                .setSql("update_time = GREATEST(NOW(), IFNULL(update_time + INTERVAL 1 SECOND, NOW()))"));
         String key = RedisConstants.CACHE_SHOP_KEY + shop.getId();
-        redisTemplate.delete(key);
+        // 在同一事务中写入发件箱，提交后由后台重新加载商铺，带版本号覆盖redis并删除各节点的本地缓存
+        cacheOutboxRelay.record(key);
         return Result.ok();
     }
+
+    /**
+     * 根据商铺类型分页查询：每页只缓存商铺id，商铺数据通过 queryBatch 从商铺缓存批量读取
+     * 新增商铺或修改商铺类型时不删除分页缓存（一个商铺的变化会让后面所有页的id移动），
+     * 分页结果最多落后 CACHE_SHOP_PAGE_TTL（10分钟）加上本地缓存有效期；商铺本身的数据不受影响，总是最新的
+     */
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current) {
+        Long[] ids = cacheUtil.queryWithPassThrough(RedisConstants.CACHE_SHOP_TYPE_PAGE_KEY, typeId + ":" + current, Long[].class,
+                page -> queryPageIds(query().eq("type_id", typeId), current, SystemConstants.DEFAULT_PAGE_SIZE),
+                RedisConstants.CACHE_SHOP_PAGE_TTL, TimeUnit.MINUTES);
+        return Result.ok(queryShopsByIds(ids));
+    }
+
+    /**
+     * 根据商铺名称关键字分页查询
+     * 只缓存不带关键字的列表；关键字由用户任意输入，每个关键字一个key会让redis中的key无限增长，直接查询数据库
+     * 分页缓存的过期时间同上
+     */
+    @Override
+    public Result queryShopByName(String name, Integer current) {
+        Long[] ids;
+        if (StrUtil.isBlank(name)) {
+            ids = cacheUtil.queryWithPassThrough(RedisConstants.CACHE_SHOP_NAME_PAGE_KEY, ":" + current, Long[].class,
+                    page -> queryPageIds(query(), current, SystemConstants.MAX_PAGE_SIZE),
+                    RedisConstants.CACHE_SHOP_PAGE_TTL, TimeUnit.MINUTES);
+        } else {
+            ids = queryPageIds(query().like("name", name), current, SystemConstants.MAX_PAGE_SIZE);
+        }
+        return Result.ok(queryShopsByIds(ids));
+    }
+
+    /**
+     * 只查询一页商铺的id
+     */
+    private Long[] queryPageIds(QueryChainWrapper<Shop> wrapper, Integer current, int size) {
+        return wrapper.select("id")
+                .page(new Page<>(current, size))
+                .getRecords().stream()
+                .map(Shop::getId)
+                .toArray(Long[]::new);
+    }
+
+    /**
+     * 本地缓存和redis中已有的商铺一次 MGET 读取，缺少的一次 listByIds 加载
+     */
+    private List<Shop> queryShopsByIds(Long[] ids) {
+        return cacheUtil.queryBatch(RedisConstants.CACHE_SHOP_KEY, Arrays.asList(ids), Shop.class,
+                this::listByIds, Shop::getId, RedisConstants.CACHE_SHOP_TTL, TimeUnit.SECONDS);
+    }
 }
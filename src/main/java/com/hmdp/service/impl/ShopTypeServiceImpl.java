@@ -1,24 +1,31 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.collection.CollUtil;
-import cn.hutool.core.convert.Convert;
-import cn.hutool.core.lang.UUID;
 import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
-import com.hmdp.dto.ShopTypeDto;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
 import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -29,31 +36,107 @@ import java.util.List;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // 检查redis版本号的间隔，也是商铺类型修改后各节点生效的最长时间
+    @Value("${hmdp.cache.shop-type.poll-ms:1000}")
+    private long pollMillis;
+
+    // 当前快照，版本号变化时整体替换
+    private volatile ShopTypeSnapshot snapshot;
+
+    private final ScheduledExecutorService versionExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        versionExecutor.scheduleWithFixedDelay(this::checkVersion, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        versionExecutor.shutdownNow();
+    }
+
     @Override
     public Result listForShop() {
+        return Result.ok(getSnapshot().getShopTypes());
+    }
+
+    @Override
+    public ShopTypeSnapshot getSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current == null) {
+            // 第一次访问时同步创建
+            synchronized (this) {
+                if (snapshot == null) {
+                    snapshot = buildSnapshot(readVersion());
+                }
+                current = snapshot;
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public void refreshShopTypes() {
+        // 先删除redis中的列表，再修改版本号，各节点重建时会重新查询数据库
+        redisTemplate.delete(RedisConstants.CACHE_SHOPTYPE_KEY);
+        redisTemplate.opsForValue().increment(RedisConstants.CACHE_SHOPTYPE_VERSION_KEY);
+        checkVersion();
+    }
+
+    /**
+     * 版本号变化时重建快照
+     */
+    private void checkVersion() {
+        try {
+            long version = readVersion();
+            ShopTypeSnapshot current = snapshot;
+            if (current != null && current.getVersion() != version) {
+                snapshot = buildSnapshot(version);
+                log.info("商铺类型快照已更新，版本{}", version);
+            }
+        } catch (Exception e) {
+            // 继续使用旧快照
+            log.error("检查商铺类型版本失败", e);
+        }
+    }
+
+    private long readVersion() {
+        String version = redisTemplate.opsForValue().get(RedisConstants.CACHE_SHOPTYPE_VERSION_KEY);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    private ShopTypeSnapshot buildSnapshot(long version) {
         // 1；查询redis缓存，有无数据
         String key = RedisConstants.CACHE_SHOPTYPE_KEY;
         String listShopByRedis = redisTemplate.opsForValue().get(key);
-
+        List<ShopType> shopTypes;
         if(StringUtils.hasText(listShopByRedis)){
-            List<ShopType> shopTypes = JSONUtil.toList(listShopByRedis, ShopType.class);
-            return Result.ok(shopTypes);
+            shopTypes = JSONUtil.toList(listShopByRedis, ShopType.class);
+        } else {
+            // 2: 没有，查询数据库，
+            LambdaQueryWrapper<ShopType> lambdaQueryWrapper = new LambdaQueryWrapper<>();
+            lambdaQueryWrapper.orderByAsc(ShopType::getSort);
+            shopTypes = list(lambdaQueryWrapper);
+            // 3: 将list集合放入redis缓存中
+            redisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shopTypes), RedisConstants.CACHE_SHOPTYPE_TTL, TimeUnit.MINUTES);
+        }
+        // 4: 提前序列化响应，计算ETag
+        try {
+            byte[] body = objectMapper.writeValueAsBytes(Result.ok(shopTypes));
+            String etag = "\"" + version + "-" + DigestUtils.md5DigestAsHex(body) + "\"";
+            return new ShopTypeSnapshot(version, Collections.unmodifiableList(shopTypes), body, etag);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
         }
-        // 2: 没有，查询数据库，
-        LambdaQueryWrapper<ShopType> lambdaQueryWrapper = new LambdaQueryWrapper<>();
-        lambdaQueryWrapper.orderByAsc(ShopType::getSort);
-        List<ShopType> listShopBySql = list(lambdaQueryWrapper);
-        // 3: 将list集合放入redis缓存中
-        redisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(listShopBySql));
-        // 4: 返回结果
-        return Result.ok(listShopBySql);
     }
-
-
 }
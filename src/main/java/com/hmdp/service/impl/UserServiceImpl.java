@@ -1,9 +1,8 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import cn.hutool.core.bean.copier.CopyOptions;
-import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
@@ -14,15 +13,16 @@ import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SignedTokenSessions;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.TokenSessionCache;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.servlet.http.HttpSession;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
@@ -42,6 +42,16 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private TokenSessionCache tokenSessionCache;
+
+    @Autowired
+    private SignedTokenSessions signedTokenSessions;
+
+    // 登录会话的保存方式：redis（redis hash）或 signed（签名token，不保存在redis中）
+    @Value("${hmdp.session.mode:redis}")
+    private String sessionMode;
+
     /**
      * 生成手机验证码，并发送给用户
      * @param phone
@@ -99,26 +109,38 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
         }
 
-        // 7: 将用户信息保存到redis中 (之前保存用户信息到 session)，key为uuid，value为user对象
-
-        // 生成uuid, 不带下划线
-        String token = UUID.randomUUID().toString(true);
-        // 将user对象转化为hash
         UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
-        // 将userDto转化为map集合
-        Map<String, Object> userDtoMap = BeanUtil.beanToMap(userDTO,new HashMap<>(),
-                CopyOptions.create()
-                            .setIgnoreNullValue(true)
-                            .setFieldValueEditor((fieldName,fieldValue)->
-                                fieldValue.toString()
-                            ));
-        redisTemplate.opsForHash().putAll(RedisConstants.LOGIN_USER_KEY+token,userDtoMap);
-        // 设置token有效期
-        redisTemplate.expire(RedisConstants.LOGIN_USER_KEY+token,RedisConstants.LOGIN_USER_TTL,TimeUnit.MINUTES);
+        // 签名token：用户信息保存在token中，不写redis
+        if ("signed".equals(sessionMode)) {
+            return Result.ok(signedTokenSessions.issue(userDTO));
+        }
+
+        // 7: 将用户信息保存到redis中 (之前保存用户信息到 session)
+        // 22位随机token，值为紧凑的二进制格式，一条 SET EX 命令写入（原来是 hash 的 putAll + expire）
+        String token = tokenSessionCache.create(userDTO);
         // 需要返回token (user对象的key)，(之前不用返回登录凭证（jwt），返回sessionId)
         return Result.ok(token);
     }
 
+    /**
+     * 登出：签名token吊销所属的会话；redis会话删除redis中的数据，并通知所有节点删除本地缓存的token
+     * 按token的格式判断，切换会话方式之前签发的token也能登出
+     * @param token 请求头中的token
+     * @return 无
+     */
+    @Override
+    public Result logout(String token) {
+        if (StrUtil.isBlank(token)) {
+            return Result.ok();
+        }
+        if (SignedTokenSessions.isSignedToken(token)) {
+            signedTokenSessions.revoke(token);
+        } else {
+            tokenSessionCache.logout(token);
+        }
+        return Result.ok();
+    }
+
     /**
      * 保存用户
      * @param phone
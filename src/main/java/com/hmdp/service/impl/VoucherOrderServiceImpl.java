@@ -1,37 +1,50 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
-import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RuntimeUtil;
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillVoucherWindowCache;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SlidingWindowCounter;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -48,105 +61,375 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     // 提前读好redis脚本，避免io读写
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
 
+    // 分片库存的秒杀脚本
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+
     // 脚本在类加载时执行
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("SECKILL.lua"));
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(long.class);  // 返回值
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
     }
 
+    // 优惠券id -> 库存分片数
+    private final Map<Long, Integer> stockShardsCache = new ConcurrentHashMap<>();
+
     // 创建阻塞队列
    /* private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024*1024);*/
 
-    // 创建单线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    // 消息队列与消费者组
+    private static final String QUEUE_NAME = RedisConstants.SECKILL_ORDER_STREAM;
+    private static final String GROUP_NAME = RedisConstants.SECKILL_ORDER_GROUP;
+
+    // 消费者名前缀：主机名 + 进程id，保证多个jvm之间的消费者名不重复
+    private static final String CONSUMER_PREFIX = "c-" + NetUtil.getLocalHostName() + "-" + RuntimeUtil.getPid() + "-";
+
+    // 每个jvm的消费者数量
+    @Value("${hmdp.seckill.order.consumers:4}")
+    private int consumerCount;
+
+    // 每次从stream中读取的订单数量
+    @Value("${hmdp.seckill.order.batch-size:50}")
+    private int batchSize;
+
+    // pending-list 中的消息空闲超过该时间，才会被认领重试（第n次重试的空闲时间为 minIdle * 2^(n-1)，即指数退避）
+    @Value("${hmdp.seckill.order.recovery.min-idle-ms:30000}")
+    private long recoveryMinIdleMillis;
+
+    // 退避时间上限
+    @Value("${hmdp.seckill.order.recovery.max-idle-ms:600000}")
+    private long recoveryMaxIdleMillis;
+
+    // 最多投递次数，超过后移入死信队列
+    @Value("${hmdp.seckill.order.recovery.max-attempts:5}")
+    private int recoveryMaxAttempts;
+
+    // 每轮扫描的pending消息数量
+    @Value("${hmdp.seckill.order.recovery.scan-count:200}")
+    private int recoveryScanCount;
+
+    // 扫描pending-list的间隔，同时重新读取登记的分片订单stream
+    @Value("${hmdp.seckill.order.recovery.interval-ms:5000}")
+    private long recoveryIntervalMillis;
+
+    // 存在分片订单stream时，主stream每次阻塞读取的时间，也是分片stream的轮询间隔
+    @Value("${hmdp.seckill.order.shard-poll-ms:200}")
+    private long shardPollMillis;
+
+    // 登记的分片订单stream，不包括主stream
+    private volatile List<String> shardStreams = Collections.emptyList();
+
+    // 消费者线程池，每个消费者一个线程
+    private ExecutorService seckillOrderExecutor;
+
+    // 恢复pending消息的定时任务
+    private ScheduledExecutorService pendingRecoveryExecutor;
+
+    private volatile boolean running = true;
+
+    // 消费指标：已落库订单数、处理批次数、失败批次数、最近60秒的消费速率
+    private final LongAdder processedOrders = new LongAdder();
+    private final LongAdder processedBatches = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final SlidingWindowCounter drainCounter = new SlidingWindowCounter(60);
+
+    // 恢复指标：认领的消息数、重试成功数、移入死信队列数、最近一次扫描到的最长空闲时间
+    private final LongAdder claimedOrders = new LongAdder();
+    private final LongAdder recoveredOrders = new LongAdder();
+    private final LongAdder deadLetterOrders = new LongAdder();
+    // 每个stream最近一次完整扫描到的最长空闲时间
+    private final Map<String, Long> oldestPendingIdleMillis = new ConcurrentHashMap<>();
 
     //@PostConstruct的作用是：类初始化时，会执行该方法。将VoucherOrderHandler线程放入线程池中
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        createGroupIfAbsent(QUEUE_NAME);
+        refreshShardStreams();
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(CONSUMER_PREFIX + i));
+        }
+        log.info("启动{}个订单消费者，每批最多读取{}条", consumerCount, batchSize);
+        // 定时认领组内所有消费者（包括已经宕机的节点）空闲过久的消息
+        pendingRecoveryExecutor = Executors.newSingleThreadScheduledExecutor();
+        pendingRecoveryExecutor.scheduleWithFixedDelay(new PendingRecoveryTask(),
+                recoveryIntervalMillis, recoveryIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        pendingRecoveryExecutor.shutdown();
+        seckillOrderExecutor.shutdown();
+        // 消费者最多阻塞2秒读取，等待当前批次处理完
+        seckillOrderExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 消费者组不存在时创建（同时创建stream），已存在时redis返回BUSYGROUP，忽略即可
+     * 从0开始读取，创建消费者组之前脚本已经写入的订单也会被消费
+     */
+    private void createGroupIfAbsent(String stream) {
+        try {
+            redisTemplate.execute((RedisCallback<String>) connection ->
+                    connection.xGroupCreate(stream.getBytes(StandardCharsets.UTF_8), GROUP_NAME, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            log.debug("{}的消费者组{}已存在", stream, GROUP_NAME);
+        }
+    }
+
+    /**
+     * 重新读取登记的分片订单stream，新登记的stream创建消费者组
+     * 分片脚本把订单写入与分片库存同一个slot的stream，集群中不能与主stream在一次命令中读取，需要逐个读取
+     */
+    private void refreshShardStreams() {
+        Set<String> members = redisTemplate.opsForSet().members(RedisConstants.SECKILL_ORDER_SHARD_STREAMS_KEY);
+        List<String> streams = members == null ? Collections.emptyList() : new ArrayList<>(members);
+        for (String stream : streams) {
+            if (!shardStreams.contains(stream)) {
+                createGroupIfAbsent(stream);
+            }
+        }
+        shardStreams = streams;
+    }
+
+    /**
+     * 主stream和所有分片订单stream
+     */
+    private List<String> orderStreams() {
+        List<String> streams = new ArrayList<>(shardStreams.size() + 1);
+        streams.add(QUEUE_NAME);
+        streams.addAll(shardStreams);
+        return streams;
     }
 
-    // 因为不是同一个线程，事务的代理是通过线程的拿到的
-    private IVoucherOrderService proxy = null;
+    // 因为不是同一个线程，事务的代理是通过线程的拿到的，这里直接注入自身的代理对象
+    @Lazy
+    @Autowired
+    private IVoucherOrderService proxy;
 
     // 创建线程
     private class VoucherOrderHandler implements Runnable{
+
+        private final String consumerName;
+
+        private VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while(true){
+            while(running){
                 try {
-                    // 获取消息队列中的订单信息 ， xreadgroup group g1 c1 block 2000 stream.order > 创建g1组的c1消费者，阻塞2秒,队列是stream.order，> 最新消息
-                    String queueName = "stream.orders";
-                    String groupName = "g1";
-                    List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(
-                            Consumer.from(groupName, "c1"),  // 组名和消费者名
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),  // 读一个，阻塞2s
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed()) // 读取队列，最新消息
-                    );
-                    // 消息获取失败，结束，下一次循环
-                    if(list == null || list.isEmpty()){
-                        // 如果获取失败，说明没有消息，继续下一次循环
-                        continue;
+                    // 分片订单stream逐个非阻塞读取
+                    List<String> streams = shardStreams;
+                    boolean received = false;
+                    for (String stream : streams) {
+                        received |= readAndHandle(stream, null);
                     }
-
-                    // 解析消息，获取订单信息，list下标为消息的id（redis生成的），值为3个id
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    RecordId orderId = record.getId();
-                    // 获取消息成功，下单
-                    handVoucherOrder(voucherOrder);
-                    // ack确认消息  sack stream.orders g1 id  确认 队列 消费者的组 消息的id （redis生成的）
-                    redisTemplate.opsForStream().acknowledge(queueName,groupName,orderId);
+                    // 主stream阻塞读取，分片stream有消息时不阻塞；存在分片stream时缩短阻塞时间，分片stream的订单最多等待这么久
+                    Duration block = received ? null
+                            : streams.isEmpty() ? Duration.ofSeconds(2) : Duration.ofMillis(shardPollMillis);
+                    readAndHandle(QUEUE_NAME, block);
                 } catch (Exception e) {
                     log.error("处理异常失败",e);
-                    handPendingList();
                 }
             }
         }
 
-        // 处理异常的消息，重新入队
-        private void handPendingList() {
+        /**
+         * 读取一批订单并处理
+         * @param block 阻塞时间，null表示不阻塞
+         * @return 是否读到了消息
+         */
+        private boolean readAndHandle(String stream, Duration block) {
+            StreamReadOptions options = StreamReadOptions.empty().count(batchSize);
+            if (block != null) {
+                options = options.block(block);
+            }
+            // 获取消息队列中的订单信息 ， xreadgroup group g1 c-x count k block 2000 streams stream.orders > ，一次读取一批
+            List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(
+                    Consumer.from(GROUP_NAME, consumerName),  // 组名和消费者名
+                    options,
+                    StreamOffset.create(stream, ReadOffset.lastConsumed()) // 读取队列，最新消息
+            );
+            // 如果获取失败，说明没有消息
+            if(list == null || list.isEmpty()){
+                return false;
+            }
+            // 获取消息成功，批量下单并确认
+            handleOrderRecords(list);
+            return true;
+        }
+    }
 
-            while(true){
+    /**
+     * 认领 pending-list 中空闲过久的消息并重试，替代只处理自己 pending-list 且无限重试的做法：
+     * 1. 扫描整个消费者组的 pending-list，不区分消费者，宕机节点的消息也能被接管
+     * 2. 第n次投递后，消息空闲 minIdle * 2^(n-1) 才会被再次认领，即指数退避
+     * 3. 投递次数超过上限的消息移入死信队列，避免一条坏消息一直占用消费线程
+     * 4. 每轮只扫描 scan-count 条，下一轮从上一轮最后一条之后继续，扫到末尾再从头开始，
+     *    避免头部还在退避的消息让后面的消息一直得不到扫描
+     */
+    private class PendingRecoveryTask implements Runnable {
+
+        // 认领消息的消费者
+        private final String consumerName = CONSUMER_PREFIX + "recovery";
+
+        // 每个stream下一轮扫描的起始消息id，没有表示从头开始
+        private final Map<String, String> cursors = new HashMap<>();
+
+        // 每个stream本轮遍历（从头到末尾）中最长的空闲时间
+        private final Map<String, Long> passOldestIdle = new HashMap<>();
+
+        @Override
+        public void run() {
+            try {
+                refreshShardStreams();
+            } catch (Exception e) {
+                log.error("读取分片订单stream失败", e);
+            }
+            List<String> streams = orderStreams();
+            // 已经取消登记的stream不再扫描
+            cursors.keySet().retainAll(streams);
+            passOldestIdle.keySet().retainAll(streams);
+            oldestPendingIdleMillis.keySet().retainAll(streams);
+            for (String stream : streams) {
                 try {
-                    // 获取消息队列中的订单信息 ， xreadgroup group g1 c1  stream.order > 创建g1组的c1消费者，不需要阻塞了,队列是stream.order，0 读的是未确认消息（pendList）
-                    String queueName = "stream.orders";
-                    String groupName = "g1";
-                    List<MapRecord<String, Object, Object>> list = redisTemplate.opsForStream().read(
-                            Consumer.from(groupName, "c1"),  // 组名和消费者名
-                            StreamReadOptions.empty().count(1),  // 读一个，阻塞2s
-                            StreamOffset.create(queueName, ReadOffset.from("0")) // 读取队列，未确认消息
-                    );
-                    // 消息获取失败，结束，下一次循环
-                    if(list == null || list.isEmpty()){
-                        // 如果获取失败，说明pendingList没有消息，调出循环
-                        break;
-                    }
+                    recoverPendingOrders(stream);
+                } catch (Exception e) {
+                    log.error("恢复{}的pending-list异常失败", stream, e);
+                }
+            }
+        }
 
-                    // 解析消息，获取订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    RecordId orderId = record.getId();
-                    // 获取消息成功，下单
-                    handVoucherOrder(voucherOrder);
-                    // ack确认消息  sack stream.orders g1 id  确认 队列 消费者的组 订单号
-                    redisTemplate.opsForStream().acknowledge(queueName,groupName,orderId);
+        private void recoverPendingOrders(String stream) {
+            // xpending stream.orders g1 cursor + count
+            String cursor = cursors.get(stream);
+            Range<String> range = cursor == null ? Range.unbounded()
+                    : Range.rightUnbounded(Range.Bound.inclusive(cursor));
+            PendingMessages pendingMessages = redisTemplate.opsForStream()
+                    .pending(stream, GROUP_NAME, range, recoveryScanCount);
+            if (pendingMessages.size() < recoveryScanCount) {
+                // 已经扫到末尾，下一轮从头开始
+                cursors.remove(stream);
+            } else {
+                cursors.put(stream, nextRecordId(pendingMessages.get(pendingMessages.size() - 1).getId()));
+            }
+            long oldestIdle = passOldestIdle.getOrDefault(stream, 0L);
+            for (PendingMessage pendingMessage : pendingMessages) {
+                long idle = pendingMessage.getElapsedTimeSinceLastDelivery().toMillis();
+                oldestIdle = Math.max(oldestIdle, idle);
+                long deliveryCount = pendingMessage.getTotalDeliveryCount();
+                // 指数退避，投递次数越多，需要空闲越久才重试
+                long minIdle = backoffMillis(deliveryCount);
+                if (idle < minIdle || !running) {
+                    continue;
+                }
+                // xclaim stream.orders g1 recovery minIdle id ，带上空闲时间，多个节点同时认领时只有一个能成功
+                MapRecord<String, Object, Object> record = claim(stream, pendingMessage.getId(), minIdle);
+                if (record == null) {
+                    continue;
+                }
+                claimedOrders.increment();
+                if (deliveryCount >= recoveryMaxAttempts) {
+                    moveToDeadLetter(record, deliveryCount + 1);
+                    continue;
+                }
+                // 单条处理，失败的消息留在pending-list中等待下一次退避重试
+                try {
+                    handleOrderRecords(Collections.singletonList(record));
+                    recoveredOrders.increment();
                 } catch (Exception e) {
-                    log.error("处理pending-list异常失败",e);
-                    try {
-                        Thread.sleep(2000);
-                    } catch (InterruptedException ex) {
-                        ex.printStackTrace();
-                    }
+                    log.error("重试订单消息{}失败，已投递{}次", record.getId(), deliveryCount + 1, e);
                 }
             }
+            if (cursors.containsKey(stream)) {
+                passOldestIdle.put(stream, oldestIdle);
+            } else {
+                // 完成一轮遍历才更新，只扫描了一部分时的最大值偏小
+                oldestPendingIdleMillis.put(stream, oldestIdle);
+                passOldestIdle.remove(stream);
+            }
+        }
+
+        private long backoffMillis(long deliveryCount) {
+            int shift = (int) Math.min(Math.max(deliveryCount - 1, 0), 20);
+            return Math.min(recoveryMinIdleMillis << shift, recoveryMaxIdleMillis);
+        }
+
+        private MapRecord<String, Object, Object> claim(String stream, RecordId recordId, long minIdle) {
+            List<ByteRecord> records = redisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.xClaim(stream.getBytes(StandardCharsets.UTF_8), GROUP_NAME, consumerName,
+                            RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(minIdle)).ids(recordId)));
+            if (records == null || records.isEmpty()) {
+                // 已经被其他节点认领，或者消息已被删除
+                return null;
+            }
+            ByteRecord byteRecord = records.get(0);
+            Map<Object, Object> value = new HashMap<>();
+            byteRecord.getValue().forEach((k, v) ->
+                    value.put(new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+            return StreamRecords.newRecord().in(stream).withId(recordId).ofMap(value);
+        }
 
+        /**
+         * 将消息写入死信队列并确认，原消息id和投递次数一并保存，方便人工排查
+         */
+        private void moveToDeadLetter(MapRecord<String, Object, Object> record, long deliveryCount) {
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            value.put("sourceStream", record.getStream());
+            value.put("sourceId", record.getId().getValue());
+            value.put("deliveryCount", String.valueOf(deliveryCount));
+            redisTemplate.opsForStream().add(StreamRecords.newRecord().in(RedisConstants.SECKILL_ORDER_DLQ).ofMap(value));
+            redisTemplate.opsForStream().acknowledge(record.getStream(), GROUP_NAME, record.getId());
+            deadLetterOrders.increment();
+            log.error("订单消息{}投递{}次仍失败，已移入死信队列", record.getId(), deliveryCount);
+        }
+    }
 
+    /**
+     * 解析一批消息，批量下单，再用一次 XACK 确认整批消息
+     * @param records stream 中读到的消息，来自同一个stream
+     */
+    private void handleOrderRecords(List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        RecordId[] recordIds = new RecordId[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            // 解析消息，获取订单信息，消息id为redis生成的id，值为3个id
+            MapRecord<String, Object, Object> record = records.get(i);
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            recordIds[i] = record.getId();
         }
+        try {
+            proxy.createVoucherOrders(voucherOrders);
+        } catch (RuntimeException e) {
+            failedBatches.increment();
+            if (records.size() > 1) {
+                // 整批失败时逐条处理，只把出错的消息留在pending-list中，其余订单正常落库
+                records.forEach(record -> handleOrderRecordQuietly(record));
+                return;
+            }
+            throw e;
+        }
+        // ack确认消息  xack stream.orders g1 id1 id2 ...
+        redisTemplate.opsForStream().acknowledge(records.get(0).getStream(), GROUP_NAME, recordIds);
+        processedBatches.increment();
+        processedOrders.add(records.size());
+        drainCounter.add(records.size());
+    }
+
+    private void handleOrderRecordQuietly(MapRecord<String, Object, Object> record) {
+        try {
+            handleOrderRecords(Collections.singletonList(record));
+        } catch (Exception e) {
+            log.error("处理订单消息{}失败，等待重试", record.getId(), e);
         }
+    }
+
 
         // 创建线程
    /* private class VoucherOrderHandler implements Runnable{
@@ -165,31 +448,6 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }*/
 
-    private void handVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        //创建锁对象
-        SimpleRedisLock simpleRedisLock = new SimpleRedisLock("userid:" + userId, redisTemplate);
-        RLock lock = redissonClient.getLock("Lock:order:" + userId);
-        boolean isLock = lock.tryLock();
-        // 获取锁
-        if(!isLock){
-            // 获取锁失败,说明该用户已经有线程抢到锁了
-            log.error("您已经抢到锁了");
-
-        }
-
-        // 释放锁
-        try{
-            // 获取代理对象
-          /*  IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();*/
-            proxy.createVoucherOrder(voucherOrder);
-        }finally {
-            // 释放锁
-            simpleRedisLock.unLock();
-        }
-
-    }
-
     @Autowired
     private ISeckillVoucherService seckillVoucherService;
 
@@ -202,6 +460,11 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Autowired
     private RedissonClient redissonClient;
 
+    @Autowired
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Autowired
+    private SeckillVoucherWindowCache seckillVoucherWindowCache;
 
     /**
      * 升级，将jdk的阻塞队列，升级为redis的stream 队列,主线程方法
@@ -210,25 +473,90 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckill(Long voucherId) {
+        // 0:本地已标记售罄，直接返回，不访问redis
+        if (seckillSoldOutCache.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 0:本地缓存的售卖时间，明显不在售卖时间内直接返回，边界附近交给脚本判断
+        int window = seckillVoucherWindowCache.check(voucherId);
+        if (window != SeckillVoucherWindowCache.OPEN) {
+            return windowFail(window);
+        }
         Long userId = UserHolder.getUser().getId();
+        // 订单id要随消息一起在脚本中原子写入stream，所以在执行脚本前生成
         long orderId = redisWorker.nextId("order");
-        // 1:执行lua脚本,将订单信息的id，优惠券id，用户id放入消息队列中去
-        Long result = redisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(orderId)
-        );
+        int shards = queryStockShards(voucherId);
+        Long result;
+        if (shards <= 1) {
+            // 1:执行lua脚本,将订单信息的id，优惠券id，用户id放入消息队列中去
+            result = redisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId)
+            );
+        } else {
+            // 1:分片库存，从用户的主分片开始依次尝试，当前分片售罄时尝试下一个分片
+            result = 1L;
+            int homeShard = SeckillStockShards.homeShard(userId, shards);
+            for (int i = 0; i < shards && result == 1; i++) {
+                int shard = (homeShard + i) % shards;
+                result = redisTemplate.execute(
+                        SECKILL_SHARD_SCRIPT,
+                        Arrays.asList(SeckillStockShards.stockKey(voucherId, shard), SeckillStockShards.orderKey(voucherId, shard),
+                                SeckillStockShards.voucherKey(voucherId, shard), SeckillStockShards.streamKey(voucherId, shard)),
+                        voucherId.toString(),
+                        userId.toString(),
+                        String.valueOf(orderId)
+                );
+            }
+        }
         // 2:判断结果是否为0
         if(result.intValue() != 0){
             // 3: 不为0，没有购买资格
-            return Result.fail(result == 1 ?"库存不足":"您已经下过单了");
+            if (result == 1) {
+                // 库存不会补货，标记售罄，后续请求在本地拒绝
+                seckillSoldOutCache.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            }
+            if (result == 2) {
+                return Result.fail("您已经下过单了");
+            }
+            return windowFail(result.intValue());
         }
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         return Result.ok(orderId);
     }
 
+    /**
+     * 不在售卖时间内的提示，本地判断和脚本的返回值相同：3未开始，4已结束
+     */
+    private static Result windowFail(int window) {
+        return Result.fail(window == SeckillVoucherWindowCache.NOT_STARTED ? "秒杀活动未开始" : "秒杀活动已结束");
+    }
+
+    /**
+     * 查询优惠券的库存分片数，创建后不会变化，缓存在本地，每个节点每个优惠券只查一次redis
+     * 分片数和未分片的库存key都不存在时（秒杀券还没有写完）不缓存，避免一直使用未分片的脚本
+     * @param voucherId
+     * @return 分片数，未分片为1
+     */
+    private int queryStockShards(Long voucherId) {
+        Integer cached = stockShardsCache.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        String shards = redisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_SHARDS_KEY + voucherId);
+        if (shards != null) {
+            stockShardsCache.put(voucherId, Integer.parseInt(shards));
+            return Integer.parseInt(shards);
+        }
+        if (Boolean.TRUE.equals(redisTemplate.hasKey(RedisConstants.SECKILL_STOCK_KEY + voucherId))) {
+            stockShardsCache.put(voucherId, 1);
+        }
+        return 1;
+    }
+
     /**
      * 主线程，在redis中判断优惠券是否可用，将订单添加到阻塞队列
      * @param
@@ -318,46 +646,231 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     }*/
 
+    @Override
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder){
-        // 锁用户id
-        Long userId = voucherOrder.getUserId();
-
-            // 查询订单列表，检查该用户是否拥有优惠券
-            LambdaQueryWrapper<VoucherOrder> lambdaQueryWrapper = new LambdaQueryWrapper<>();
-            lambdaQueryWrapper.eq(VoucherOrder::getUserId,userId);
-            lambdaQueryWrapper.eq(VoucherOrder::getVoucherId, voucherOrder.getVoucherId());
-            int count = count(lambdaQueryWrapper);
-            if(count > 0){
-                log.error("您已经拥有优惠券了");
-            }
+        createVoucherOrders(Collections.singletonList(voucherOrder));
+    }
 
-            // 扣减库存，此处 判断库存（stock） > 0 ,可以保证不发生超卖
-            boolean flag = seckillVoucherService.update()
-                    .setSql("stock = stock - 1")
-                    .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock",0).update();
+    /**
+     * 批量创建订单：一次查询校验一人一单，按优惠券分组扣减库存，再用一条多行insert写入订单
+     * @param voucherOrders 一批订单
+     * @return 实际创建的订单
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1: 批次内去重，同一用户同一优惠券只保留一单
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
 
-            // 创建订单
-            if(!flag){
-                // 扣减失败
-               log.error("库存不足");
+        // 2: 一次查询，过滤掉数据库中已经存在的订单（一人一单）
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        orderMap.values().forEach(voucherOrder -> {
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+        });
+        List<VoucherOrder> existOrders = query()
+                .select("user_id", "voucher_id")
+                .in("user_id", userIds)
+                .in("voucher_id", voucherIds)
+                .list();
+        for (VoucherOrder existOrder : existOrders) {
+            if (orderMap.remove(existOrder.getUserId() + ":" + existOrder.getVoucherId()) != null) {
+                log.error("用户{}已经拥有优惠券{}了", existOrder.getUserId(), existOrder.getVoucherId());
             }
-            save(voucherOrder);
+        }
+        if (orderMap.isEmpty()) {
+            return Collections.emptyList();
         }
 
+        // 3: 按优惠券分组，每个优惠券只扣减一次库存
+        Map<Long, List<VoucherOrder>> voucherOrderGroups = orderMap.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        List<VoucherOrder> createOrders = new ArrayList<>(orderMap.size());
+        voucherOrderGroups.forEach((voucherId, orders) -> createOrders.addAll(deductStock(voucherId, orders)));
 
+        // 4: 多行insert，一次写入整批订单
+        if (!createOrders.isEmpty()) {
+            getBaseMapper().insertBatch(createOrders);
+        }
+        return createOrders;
+    }
 
-}
-
-
-
-
-
-
+    /**
+     * 扣减一个优惠券的库存，此处 判断库存（stock） >= n ,可以保证不发生超卖
+     * @return 扣减成功的订单
+     */
+    private List<VoucherOrder> deductStock(Long voucherId, List<VoucherOrder> orders) {
+        int count = orders.size();
+        if (decreaseStock(voucherId, count)) {
+            return orders;
+        }
+        // 整批扣减失败，说明剩余库存不够整批，按剩余库存扣减
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        int stock = seckillVoucher == null ? 0 : Math.min(seckillVoucher.getStock(), count);
+        if (stock > 0 && decreaseStock(voucherId, stock)) {
+            log.error("优惠券{}库存不足，{}个订单未创建", voucherId, count - stock);
+            return orders.subList(0, stock);
+        }
+        // 扣减失败
+        log.error("优惠券{}库存不足，{}个订单未创建", voucherId, count);
+        return Collections.emptyList();
+    }
 
+    private boolean decreaseStock(Long voucherId, int count) {
+        return seckillVoucherService.update()
+                .setSql("stock = stock - " + count)
+                .eq("voucher_id", voucherId).ge("stock", count).update();
+    }
 
+    /**
+     * 订单消费情况：消费速率、积压数量和延迟
+     * @return 指标
+     */
+    @Override
+    public Map<String, Object> queryOrderStreamStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("consumers", consumerCount);
+        stats.put("batchSize", batchSize);
+        stats.put("processedOrders", processedOrders.sum());
+        stats.put("processedBatches", processedBatches.sum());
+        stats.put("failedBatches", failedBatches.sum());
+        // 最近60秒平均每秒落库的订单数
+        stats.put("drainRate", drainCounter.ratePerSecond());
+
+        // 主stream和分片stream合计：长度、pending数量求和，延迟取最大值
+        List<String> streams = orderStreams();
+        long streamLength = 0;
+        long pending = 0;
+        long lagMillis = 0;
+        for (String stream : streams) {
+            StreamInfo.XInfoStream streamInfo = redisTemplate.opsForStream().info(stream);
+            streamLength += streamInfo.streamLength();
+            Optional<StreamInfo.XInfoGroup> group = redisTemplate.opsForStream().groups(stream).stream()
+                    .filter(g -> GROUP_NAME.equals(g.groupName()))
+                    .findFirst();
+            if (group.isPresent()) {
+                pending += group.get().pendingCount();
+                // 最新消息与组内最后投递消息的时间差，即消费延迟
+                lagMillis = Math.max(lagMillis, recordTime(streamInfo.lastGeneratedId()) - recordTime(group.get().lastDeliveredId()));
+            }
+        }
+        stats.put("streams", streams.size());
+        stats.put("streamLength", streamLength);
+        stats.put("pending", pending);
+        stats.put("lagMillis", lagMillis);
+        stats.put("oldestPendingIdleMillis", oldestPendingIdleMillis.values().stream().mapToLong(Long::longValue).max().orElse(0));
+        stats.put("claimedOrders", claimedOrders.sum());
+        stats.put("recoveredOrders", recoveredOrders.sum());
+        stats.put("deadLetterOrders", deadLetterOrders.sum());
+        stats.put("deadLetterLength", redisTemplate.opsForStream().size(RedisConstants.SECKILL_ORDER_DLQ));
+        return stats;
+    }
 
+    /**
+     * 一个优惠券还没有落库的订单消息，结束秒杀对账前检查
+     * 只检查该优惠券的分片stream和主stream，按消息中的 voucherId 过滤，其他优惠券的积压不影响
+     * @param voucherId 优惠券id
+     * @param shards 库存分片数，1表示不分片
+     * @return pending：已投递未确认；undelivered：还没有投递；deadLetters：死信队列中的消息
+     */
+    @Override
+    public Map<String, Long> queryVoucherOrderBacklog(Long voucherId, int shards) {
+        List<String> streams = new ArrayList<>(shards + 1);
+        streams.add(RedisConstants.SECKILL_ORDER_STREAM);
+        for (int i = 0; shards > 1 && i < shards; i++) {
+            streams.add(SeckillStockShards.streamKey(voucherId, i));
+        }
+        String id = voucherId.toString();
+        long pending = 0;
+        long undelivered = 0;
+        for (String stream : streams) {
+            if (!Boolean.TRUE.equals(redisTemplate.hasKey(stream))) {
+                continue;
+            }
+            Optional<StreamInfo.XInfoGroup> group = redisTemplate.opsForStream().groups(stream).stream()
+                    .filter(g -> GROUP_NAME.equals(g.groupName()))
+                    .findFirst();
+            if (!group.isPresent()) {
+                continue;
+            }
+            // pending-list 中的消息逐条读取内容
+            Range<String> range = Range.unbounded();
+            while (true) {
+                PendingMessages pendingMessages = redisTemplate.opsForStream().pending(stream, GROUP_NAME, range, recoveryScanCount);
+                for (PendingMessage pendingMessage : pendingMessages) {
+                    String recordId = pendingMessage.getIdAsString();
+                    pending += countVoucherRecords(redisTemplate.opsForStream().range(stream, Range.closed(recordId, recordId)), id);
+                }
+                if (pendingMessages.size() < recoveryScanCount) {
+                    break;
+                }
+                range = Range.rightUnbounded(Range.Bound.inclusive(nextRecordId(pendingMessages.get(pendingMessages.size() - 1).getId())));
+            }
+            // 组内最后投递的消息之后的消息还没有投递
+            String cursor = nextRecordId(RecordId.of(group.get().lastDeliveredId()));
+            while (true) {
+                List<MapRecord<String, Object, Object>> records = redisTemplate.opsForStream().range(stream,
+                        Range.rightUnbounded(Range.Bound.inclusive(cursor)), RedisZSetCommands.Limit.limit().count(recoveryScanCount));
+                if (records == null || records.isEmpty()) {
+                    break;
+                }
+                undelivered += countVoucherRecords(records, id);
+                if (records.size() < recoveryScanCount) {
+                    break;
+                }
+                cursor = nextRecordId(records.get(records.size() - 1).getId());
+            }
+        }
+        // 死信队列中的消息扣减了redis库存但没有落库
+        long deadLetters = 0;
+        String cursor = "0-0";
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = redisTemplate.opsForStream().range(RedisConstants.SECKILL_ORDER_DLQ,
+                    Range.rightUnbounded(Range.Bound.inclusive(cursor)), RedisZSetCommands.Limit.limit().count(recoveryScanCount));
+            if (records == null || records.isEmpty()) {
+                break;
+            }
+            deadLetters += countVoucherRecords(records, id);
+            if (records.size() < recoveryScanCount) {
+                break;
+            }
+            cursor = nextRecordId(records.get(records.size() - 1).getId());
+        }
+        Map<String, Long> backlog = new LinkedHashMap<>();
+        backlog.put("pending", pending);
+        backlog.put("undelivered", undelivered);
+        backlog.put("deadLetters", deadLetters);
+        return backlog;
+    }
 
+    private static long countVoucherRecords(List<MapRecord<String, Object, Object>> records, String voucherId) {
+        if (records == null) {
+            return 0;
+        }
+        return records.stream().filter(record -> voucherId.equals(record.getValue().get("voucherId"))).count();
+    }
 
+    /**
+     * 紧跟在该消息之后的id：毫秒时间戳-序号+1，作为下一次读取的起始位置（包含）
+     */
+    private static String nextRecordId(RecordId recordId) {
+        return recordId.getTimestamp() + "-" + (recordId.getSequence() + 1);
+    }
 
+    /**
+     * stream 消息id的格式为 毫秒时间戳-序号
+     */
+    private static long recordTime(String recordId) {
+        if (recordId == null) {
+            return 0;
+        }
+        int index = recordId.indexOf('-');
+        return Long.parseLong(index < 0 ? recordId : recordId.substring(0, index));
+    }
 
+}
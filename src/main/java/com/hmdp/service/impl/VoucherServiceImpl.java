@@ -6,16 +6,28 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillSoldOutCache;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SeckillVoucherWindowCache;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>
@@ -26,14 +38,37 @@ import java.util.List;
  * @since 2021-12-22
  */
 @Service
+@Slf4j
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
 
+    // 收回剩余库存的脚本
+    private static final DefaultRedisScript<Long> STOCK_RECLAIM_SCRIPT;
+
+    static {
+        STOCK_RECLAIM_SCRIPT = new DefaultRedisScript<>();
+        STOCK_RECLAIM_SCRIPT.setLocation(new ClassPathResource("stock_reclaim.lua"));
+        STOCK_RECLAIM_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
     @Autowired
     private StringRedisTemplate redisTemplate;
 
+    @Autowired
+    private SeckillSoldOutCache seckillSoldOutCache;
+
+    @Autowired
+    private SeckillVoucherWindowCache seckillVoucherWindowCache;
+
+    // 秒杀库存分片数，1表示不分片
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -47,14 +82,106 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     public void addSeckillVoucher(Voucher voucher) {
         // 保存优惠券，同时将优惠券库存，保存到redis中
         save(voucher);
-        redisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY +voucher.getId(),voucher.getStock().toString());
+        // 先写售卖时间，秒杀脚本看到库存时一定能看到售卖时间
+        seckillVoucherWindowCache.publish(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime(), stockShards);
+        if (stockShards > 1) {
+            // 库存拆分到多个分片，最后再写分片数，秒杀请求看到分片数时各分片库存已经就绪
+            int[] parts = SeckillStockShards.split(voucher.getStock(), stockShards);
+            String[] streams = new String[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                redisTemplate.opsForValue().set(SeckillStockShards.stockKey(voucher.getId(), i), String.valueOf(parts[i]));
+                streams[i] = SeckillStockShards.streamKey(voucher.getId(), i);
+            }
+            // 登记分片订单stream，订单消费者定期读取登记的stream
+            redisTemplate.opsForSet().add(RedisConstants.SECKILL_ORDER_SHARD_STREAMS_KEY, streams);
+            redisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_SHARDS_KEY + voucher.getId(), String.valueOf(stockShards));
+        } else {
+            redisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY +voucher.getId(),voucher.getStock().toString());
+        }
         // 保存秒杀信息
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setInitialStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
     }
+
+    /**
+     * 结束秒杀并对账：
+     * 1. 把redis中各分片剩余库存清零（之后的请求都会返回库存不足），剩余库存累加到同一slot的剩余库存key，
+     *    清零和累加在一个脚本中完成（stock_reclaim.lua），重复执行结果不变
+     * 2. 该优惠券的订单消息全部落库后，以数据库为准对账：初始库存 - 订单数 应该等于数据库库存，
+     *    redis剩余库存应该等于 初始库存 - 订单数 - 死信队列中的订单；不一致时只报告，不修改数据库，由人工处理
+     * @param voucherId
+     * @return 对账结果
+     */
+    @Override
+    public Result endSeckillVoucher(Long voucherId) {
+        // 1: 关闭售卖，收回剩余库存
+        String shardsValue = redisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_SHARDS_KEY + voucherId);
+        long leftStock = 0;
+        if (shardsValue == null) {
+            leftStock = reclaimStock(RedisConstants.SECKILL_STOCK_KEY + voucherId, SeckillStockShards.leftKey(voucherId));
+        } else {
+            for (int i = 0; i < Integer.parseInt(shardsValue); i++) {
+                leftStock += reclaimStock(SeckillStockShards.stockKey(voucherId, i), SeckillStockShards.leftKey(voucherId, i));
+            }
+        }
+        seckillSoldOutCache.markSoldOut(voucherId);
+
+        // 2: 该优惠券的订单必须全部处理完才能对账，否则还会有库存扣减；其他优惠券的积压不影响
+        Map<String, Long> backlog = voucherOrderService.queryVoucherOrderBacklog(voucherId,
+                shardsValue == null ? 1 : Integer.parseInt(shardsValue));
+        if (backlog.get("pending") > 0 || backlog.get("undelivered") > 0) {
+            return Result.fail("订单尚未处理完，请稍后再对账");
+        }
+
+        // 订单已经处理完，分片订单stream不会再有新消息，取消登记，一天后删除
+        if (shardsValue != null) {
+            for (int i = 0; i < Integer.parseInt(shardsValue); i++) {
+                String stream = SeckillStockShards.streamKey(voucherId, i);
+                redisTemplate.opsForSet().remove(RedisConstants.SECKILL_ORDER_SHARD_STREAMS_KEY, stream);
+                redisTemplate.expire(stream, 1, TimeUnit.DAYS);
+            }
+        }
+
+        // 3: 对账，以数据库为准
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        if (seckillVoucher == null) {
+            return Result.fail("秒杀券不存在");
+        }
+        int soldCount = voucherOrderService.query().eq("voucher_id", voucherId).count();
+        // 没有记录初始库存的旧秒杀券：扣减库存和创建订单在同一个事务中，用 数据库库存 + 订单数 代替
+        int initialStock = seckillVoucher.getInitialStock() != null
+                ? seckillVoucher.getInitialStock() : seckillVoucher.getStock() + soldCount;
+        long expectedStock = initialStock - soldCount;
+        long deadLetters = backlog.get("deadLetters");
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("initialStock", initialStock);
+        result.put("sold", soldCount);
+        result.put("dbStock", seckillVoucher.getStock());
+        result.put("leftStock", leftStock);
+        result.put("deadLetters", deadLetters);
+        // 数据库库存与订单数不一致
+        result.put("dbMismatch", seckillVoucher.getStock() - expectedStock);
+        // redis扣减了库存，但既没有落库也不在死信队列中（负数），或者多收回了库存（正数）
+        result.put("redisMismatch", leftStock - (expectedStock - deadLetters));
+        if (seckillVoucher.getStock() != expectedStock || leftStock != expectedStock - deadLetters) {
+            log.warn("优惠券{}对账不一致：初始库存{}，订单{}，数据库库存{}，redis剩余{}，死信{}，未修改数据库",
+                    voucherId, initialStock, soldCount, seckillVoucher.getStock(), leftStock, deadLetters);
+        }
+        return Result.ok(result);
+    }
+
+    /**
+     * 收回一个库存key的剩余库存
+     * @return 该库存key累计收回的剩余库存
+     */
+    private long reclaimStock(String stockKey, String leftKey) {
+        Long left = redisTemplate.execute(STOCK_RECLAIM_SCRIPT, Arrays.asList(stockKey, leftKey));
+        return left == null ? 0 : left;
+    }
 }
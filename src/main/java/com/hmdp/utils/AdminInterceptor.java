@@ -0,0 +1,38 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 运维接口（/admin/**）的权限校验，只有配置的管理员用户可以访问
+ * 在登录拦截器之后执行，这里的用户一定已经登录
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final Set<Long> adminUserIds;
+
+    /**
+     * @param adminUserIds 管理员用户id，逗号分隔；为空时所有用户都不能访问
+     */
+    public AdminInterceptor(String adminUserIds) {
+        this.adminUserIds = StrUtil.split(adminUserIds, ',', true, true).stream()
+                .map(Long::valueOf)
+                .collect(Collectors.toSet());
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserDTO user = UserHolder.getUser();
+        if (user == null || !adminUserIds.contains(user.getId())) {
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
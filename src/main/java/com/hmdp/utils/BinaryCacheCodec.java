@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * 二进制格式：[1字节标记 0xB2][1字节标志位][8字节逻辑过期时间][8字节版本号][4字节重建耗时，可选][Smile 编码的对象]
+ * 标志位 FLAG_DELTA 表示带有重建耗时
+ * 标志位 FLAG_LZ4 表示对象经过LZ4压缩：[4字节压缩前长度][LZ4 block]，只压缩超过阈值且压缩后确实变小的值
+ * 过期时间和版本号是固定位置的头部，不需要反序列化对象就能读取，cache_cas.lua 也直接读取版本号
+ * Smile 是二进制的json，比文本json更小、解析更快
+ * 仍然可以读取旧格式：[0xB1][8字节逻辑过期时间][Smile]
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    static final byte MAGIC = (byte) 0xB2;
+
+    static final int HEADER_LENGTH = 18;
+
+    static final int FLAG_DELTA = 1;
+
+    static final int FLAG_LZ4 = 2;
+
+    private static final LZ4Factory LZ4 = LZ4Factory.fastestInstance();
+
+    private static final byte MAGIC_V1 = (byte) 0xB1;
+
+    private static final int HEADER_LENGTH_V1 = 9;
+
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory())
+            .registerModule(new JavaTimeModule())
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    // Smile 编码后超过该长度才压缩
+    private final int compressThreshold;
+
+    /**
+     * 不压缩，仍然可以读取压缩过的值
+     */
+    public BinaryCacheCodec() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param compressThreshold Smile 编码后超过该字节数时压缩
+     */
+    public BinaryCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        // json 文本不会以 0xB1、0xB2 开头
+        return (bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC)
+                || (bytes.length >= HEADER_LENGTH_V1 && bytes[0] == MAGIC_V1);
+    }
+
+    @Override
+    public byte[] encode(Object value, long expireAt, long version, int deltaMillis) {
+        try {
+            byte[] payload = mapper.writeValueAsBytes(value);
+            byte[] compressed = null;
+            int compressedLength = 0;
+            if (payload.length >= compressThreshold) {
+                LZ4Compressor compressor = LZ4.fastCompressor();
+                compressed = new byte[compressor.maxCompressedLength(payload.length)];
+                compressedLength = compressor.compress(payload, 0, payload.length, compressed, 0, compressed.length);
+                // 压缩后没有变小（例如已经压缩过的图片地址），保存原始数据
+                if (compressedLength + 4 >= payload.length) {
+                    compressed = null;
+                }
+            }
+            int flags = (deltaMillis > 0 ? FLAG_DELTA : 0) | (compressed != null ? FLAG_LZ4 : 0);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_LENGTH + 8
+                    + (compressed != null ? compressedLength : payload.length));
+            out.write(MAGIC);
+            out.write(flags);
+            writeLong(out, expireAt);
+            writeLong(out, version);
+            if (deltaMillis > 0) {
+                writeInt(out, deltaMillis);
+            }
+            if (compressed != null) {
+                writeInt(out, payload.length);
+                out.write(compressed, 0, compressedLength);
+            } else {
+                out.write(payload);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long readExpireAt(byte[] bytes) {
+        return readLong(bytes, bytes[0] == MAGIC ? 2 : 1);
+    }
+
+    @Override
+    public long readVersion(byte[] bytes) {
+        return bytes[0] == MAGIC ? readLong(bytes, 10) : NO_VERSION;
+    }
+
+    @Override
+    public int readDelta(byte[] bytes) {
+        return hasDelta(bytes) ? (int) readLong(bytes, HEADER_LENGTH, 4) : 0;
+    }
+
+    @Override
+    public boolean isCompressed(byte[] bytes) {
+        return bytes[0] == MAGIC && (bytes[1] & FLAG_LZ4) != 0;
+    }
+
+    @Override
+    public int rawLength(byte[] bytes) {
+        if (!isCompressed(bytes)) {
+            return bytes.length;
+        }
+        int offset = payloadOffset(bytes);
+        return offset + (int) readLong(bytes, offset, 4);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        int offset = payloadOffset(bytes);
+        try {
+            if (isCompressed(bytes)) {
+                int length = (int) readLong(bytes, offset, 4);
+                byte[] payload = LZ4.fastDecompressor().decompress(bytes, offset + 4, length);
+                return mapper.readValue(payload, type);
+            }
+            return mapper.readValue(bytes, offset, bytes.length - offset, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int payloadOffset(byte[] bytes) {
+        return bytes[0] != MAGIC ? HEADER_LENGTH_V1 : hasDelta(bytes) ? HEADER_LENGTH + 4 : HEADER_LENGTH;
+    }
+
+    private static boolean hasDelta(byte[] bytes) {
+        return bytes[0] == MAGIC && (bytes[1] & FLAG_DELTA) != 0;
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        for (int i = 56; i >= 0; i -= 8) {
+            out.write((int) (value >>> i));
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        for (int i = 24; i >= 0; i -= 8) {
+            out.write(value >>> i);
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return readLong(bytes, offset, 8);
+    }
+
+    private static long readLong(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+}
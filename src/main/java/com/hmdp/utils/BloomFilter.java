@@ -0,0 +1,114 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 布隆过滤器，位数组放在堆外内存中
+ * 位的排列方式与redis的 SETBIT 一致（第0位是第一个字节的最高位），可以直接与redis中的bitmap互相复制
+ */
+public class BloomFilter {
+
+    // 位数组长度
+    private final long numBits;
+    // 哈希函数个数
+    private final int numHashes;
+    // 堆外位数组
+    private final ByteBuffer bits;
+
+    /**
+     * @param expectedInsertions 预计元素数量
+     * @param fpp 期望误判率
+     */
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        // m = -n * ln(p) / (ln2)^2 ，按字节对齐
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = Math.max(8, (m + 7) / 8 * 8);
+        // k = m / n * ln2
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        if (numBits / 8 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("布隆过滤器过大：" + numBits + "位");
+        }
+        this.bits = ByteBuffer.allocateDirect((int) (numBits / 8));
+    }
+
+    /**
+     * 元素对应的所有位
+     */
+    public long[] offsets(long id) {
+        byte[] bytes = ByteBuffer.allocate(Long.BYTES).putLong(id).array();
+        long[] hash = MurmurHash.hash128(bytes);
+        long[] offsets = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    /**
+     * 可能存在返回true；返回false时一定不存在
+     */
+    public boolean mightContain(long id) {
+        for (long offset : offsets(id)) {
+            if (!getBit(offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 添加元素
+     * @return 元素对应的位，用于同步到redis
+     */
+    public long[] put(long id) {
+        long[] offsets = offsets(id);
+        setBits(offsets);
+        return offsets;
+    }
+
+    public synchronized void setBits(long[] offsets) {
+        for (long offset : offsets) {
+            int index = (int) (offset >>> 3);
+            bits.put(index, (byte) (bits.get(index) | (0x80 >>> (offset & 7))));
+        }
+    }
+
+    /**
+     * 合并redis中的bitmap（按位或），本地新增的位不会丢失
+     * @param bitmap redis中的bitmap
+     */
+    public synchronized void merge(byte[] bitmap) {
+        int length = Math.min(bitmap.length, bits.capacity());
+        for (int i = 0; i < length; i++) {
+            bits.put(i, (byte) (bits.get(i) | bitmap[i]));
+        }
+    }
+
+    /**
+     * 复制位数组，写入redis
+     */
+    public synchronized byte[] toByteArray() {
+        byte[] bytes = new byte[bits.capacity()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = bits.get(i);
+        }
+        return bytes;
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    private boolean getBit(long offset) {
+        return (bits.get((int) (offset >>> 3)) & (0x80 >>> (offset & 7))) != 0;
+    }
+}
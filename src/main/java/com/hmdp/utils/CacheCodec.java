@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的序列化方式
+ * 逻辑过期时间和版本号作为头部单独保存，判断是否过期、比较版本时不需要反序列化整个对象
+ */
+public interface CacheCodec {
+
+    /**
+     * 没有逻辑过期时间
+     */
+    long NO_EXPIRE = 0L;
+
+    /**
+     * 没有版本号
+     */
+    long NO_VERSION = 0L;
+
+    /**
+     * 是否能解析这段数据，用于新旧格式共存时选择解析方式
+     */
+    boolean supports(byte[] bytes);
+
+    default byte[] encode(Object value, long expireAt) {
+        return encode(value, expireAt, NO_VERSION, 0);
+    }
+
+    default byte[] encode(Object value, long expireAt, long version) {
+        return encode(value, expireAt, version, 0);
+    }
+
+    /**
+     * @param value 缓存的对象
+     * @param expireAt 逻辑过期时间（毫秒时间戳），没有时传 NO_EXPIRE
+     * @param version 数据版本号，写入时不允许覆盖更高的版本，没有时传 NO_VERSION
+     * @param deltaMillis 重建这条数据花费的时间，用于提前刷新（XFetch），没有时传0
+     */
+    byte[] encode(Object value, long expireAt, long version, int deltaMillis);
+
+    /**
+     * 只读取逻辑过期时间
+     * @return 毫秒时间戳，没有时返回 NO_EXPIRE
+     */
+    long readExpireAt(byte[] bytes);
+
+    /**
+     * 只读取版本号
+     * @return 没有时返回 NO_VERSION
+     */
+    long readVersion(byte[] bytes);
+
+    /**
+     * 只读取重建耗时
+     * @return 没有时返回0
+     */
+    int readDelta(byte[] bytes);
+
+    /**
+     * 对象部分是否经过压缩
+     */
+    default boolean isCompressed(byte[] bytes) {
+        return false;
+    }
+
+    /**
+     * 不压缩时的长度，用于统计压缩率
+     */
+    default int rawLength(byte[] bytes) {
+        return bytes.length;
+    }
+
+    <T> T decode(byte[] bytes, Class<T> type);
+}
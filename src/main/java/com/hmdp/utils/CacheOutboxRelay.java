@@ -0,0 +1,259 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.IdUtil;
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存失效的发件箱（tb_cache_outbox）
+ * 修改数据时在同一个事务中写入需要失效的缓存key，事务提交后由后台线程批量处理：
+ * 在 CacheRefreshScheduler 注册过的前缀从数据库重新加载，带版本号覆盖redis（慢的重建不能再用旧数据覆盖），
+ * 其他key直接删除；都会通知各节点删除本地缓存
+ * 失败按指数退避重试，成功后隔一段时间再处理一次（延迟双删），覆盖提交前被并发读请求写回的没有版本号的旧数据
+ * redis异常不会导致数据修改回滚，缓存失效也不在请求的关键路径上
+ * 多个节点同时扫描时，先用一条带 limit 的update把到期的事件认领到本批次（owner），只处理认领到的事件；
+ * 认领之后按 owner 查询和更新本批次的事件，依赖 idx_owner 索引，避免每批都全表扫描
+ * 认领时把 next_time 推迟 lease-ms，节点在处理中宕机时，租约到期后由其他节点重新认领
+ */
+@Slf4j
+@Component
+public class CacheOutboxRelay {
+
+    // 扫描发件箱的间隔，事务提交后也会立即触发一次
+    @Value("${hmdp.cache.outbox.poll-ms:500}")
+    private long pollMillis;
+
+    // 每批处理的事件数量
+    @Value("${hmdp.cache.outbox.batch-size:100}")
+    private int batchSize;
+
+    // 第一次处理后多久进行第二次处理
+    @Value("${hmdp.cache.outbox.double-delete-delay-ms:1000}")
+    private long doubleDeleteDelayMillis;
+
+    // 最多失败次数，之后不再重试
+    @Value("${hmdp.cache.outbox.max-attempts:10}")
+    private int maxAttempts;
+
+    // 已完成的事件保留时间
+    @Value("${hmdp.cache.outbox.retention-hours:24}")
+    private long retentionHours;
+
+    // 认领的租约时间，超过后其他节点可以重新认领
+    @Value("${hmdp.cache.outbox.lease-ms:30000}")
+    private long leaseMillis;
+
+    // 本节点的认领标识前缀
+    private final String ownerPrefix = IdUtil.fastSimpleUUID().substring(0, 16) + ":";
+
+    private final AtomicLong claimSequence = new AtomicLong();
+
+    @Autowired
+    private CacheOutboxMapper cacheOutboxMapper;
+
+    @Autowired
+    private CacheRefreshScheduler cacheRefreshScheduler;
+
+    private final ScheduledExecutorService relayExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final LongAdder firstDeletes = new LongAdder();
+    private final LongAdder secondDeletes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder lagMillisSum = new LongAdder();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        relayExecutor.scheduleWithFixedDelay(this::relay, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+        relayExecutor.scheduleWithFixedDelay(this::cleanUp, 1, 1, TimeUnit.HOURS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        relayExecutor.shutdown();
+    }
+
+    /**
+     * 在当前事务中记录需要失效的缓存key，事务提交后立即唤醒后台处理
+     * @param keys 缓存key
+     */
+    public void record(String... keys) {
+        // 数据库只保存到毫秒，截断而不是由数据库四舍五入，提交后立即扫描时 next_time 不会晚于当前时间
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        for (String key : keys) {
+            cacheOutboxMapper.insert(new CacheOutbox()
+                    .setCacheKey(key)
+                    .setStatus(CacheOutbox.STATUS_PENDING)
+                    .setAttempts(0)
+                    .setNextTime(now)
+                    .setCreateTime(now));
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    wakeUp();
+                }
+            });
+        } else {
+            wakeUp();
+        }
+    }
+
+    /**
+     * 发件箱情况：未完成和失败的事件数量，删除次数，提交到第一次删除的延迟
+     */
+    public Map<String, Object> queryStats() {
+        long first = firstDeletes.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("pending", cacheOutboxMapper.selectCount(new LambdaQueryWrapper<CacheOutbox>()
+                .in(CacheOutbox::getStatus, CacheOutbox.STATUS_PENDING, CacheOutbox.STATUS_DELETED)));
+        map.put("failed", cacheOutboxMapper.selectCount(new LambdaQueryWrapper<CacheOutbox>()
+                .eq(CacheOutbox::getStatus, CacheOutbox.STATUS_FAILED)));
+        map.put("firstDeletes", first);
+        map.put("secondDeletes", secondDeletes.sum());
+        map.put("failures", failures.sum());
+        map.put("avgLagMillis", first == 0 ? 0 : lagMillisSum.sum() / first);
+        map.put("maxLagMillis", maxLagMillis.get());
+        return map;
+    }
+
+    private void wakeUp() {
+        try {
+            relayExecutor.execute(this::relay);
+        } catch (Exception e) {
+            // 已关闭时由下一次启动后的扫描处理
+            log.warn("唤醒缓存发件箱失败", e);
+        }
+    }
+
+    private void relay() {
+        try {
+            LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+            // 认领到期的事件：一条update，多个节点并发执行时每个事件只会被一个节点认领
+            String owner = ownerPrefix + claimSequence.incrementAndGet();
+            LocalDateTime leaseUntil = now.plus(Duration.ofMillis(leaseMillis));
+            int claimed = cacheOutboxMapper.update(null, new LambdaUpdateWrapper<CacheOutbox>()
+                    .set(CacheOutbox::getOwner, owner)
+                    .set(CacheOutbox::getNextTime, leaseUntil)
+                    .in(CacheOutbox::getStatus, CacheOutbox.STATUS_PENDING, CacheOutbox.STATUS_DELETED)
+                    .le(CacheOutbox::getNextTime, now)
+                    .last("order by id limit " + batchSize));
+            if (claimed == 0) {
+                return;
+            }
+            List<CacheOutbox> events = cacheOutboxMapper.selectList(new LambdaQueryWrapper<CacheOutbox>()
+                    .eq(CacheOutbox::getOwner, owner)
+                    .in(CacheOutbox::getStatus, CacheOutbox.STATUS_PENDING, CacheOutbox.STATUS_DELETED));
+            // 一批事件的key一起重新加载或删除
+            Set<String> keys = new LinkedHashSet<>();
+            for (CacheOutbox event : events) {
+                keys.add(event.getCacheKey());
+            }
+            try {
+                cacheRefreshScheduler.reload(keys);
+            } catch (Exception e) {
+                log.error("缓存失效失败，稍后重试", e);
+                retryLater(events, owner, now);
+                return;
+            }
+            List<Long> firstIds = new ArrayList<>();
+            List<Long> secondIds = new ArrayList<>();
+            for (CacheOutbox event : events) {
+                if (event.getStatus() == CacheOutbox.STATUS_PENDING) {
+                    firstIds.add(event.getId());
+                    long lag = Duration.between(event.getCreateTime(), now).toMillis();
+                    lagMillisSum.add(lag);
+                    maxLagMillis.accumulateAndGet(lag, Math::max);
+                } else {
+                    secondIds.add(event.getId());
+                }
+            }
+            if (!firstIds.isEmpty()) {
+                // 第一次处理完成，等待延迟双删
+                cacheOutboxMapper.update(null, new LambdaUpdateWrapper<CacheOutbox>()
+                        .set(CacheOutbox::getStatus, CacheOutbox.STATUS_DELETED)
+                        .set(CacheOutbox::getAttempts, 0)
+                        .set(CacheOutbox::getFirstDeleteTime, now)
+                        .set(CacheOutbox::getNextTime, now.plus(Duration.ofMillis(doubleDeleteDelayMillis)))
+                        .in(CacheOutbox::getId, firstIds)
+                        .eq(CacheOutbox::getOwner, owner));
+                firstDeletes.add(firstIds.size());
+            }
+            if (!secondIds.isEmpty()) {
+                cacheOutboxMapper.update(null, new LambdaUpdateWrapper<CacheOutbox>()
+                        .set(CacheOutbox::getStatus, CacheOutbox.STATUS_DONE)
+                        .in(CacheOutbox::getId, secondIds)
+                        .eq(CacheOutbox::getOwner, owner));
+                secondDeletes.add(secondIds.size());
+            }
+            if (claimed == batchSize) {
+                // 可能还有积压，继续处理
+                wakeUp();
+            }
+        } catch (Exception e) {
+            log.error("处理缓存发件箱失败", e);
+        }
+    }
+
+    /**
+     * 按失败次数指数退避，最长30秒；超过最多失败次数后标记为失败
+     * 只更新仍由本批次认领的事件，租约到期后被其他节点认领的事件不覆盖
+     */
+    private void retryLater(List<CacheOutbox> events, String owner, LocalDateTime now) {
+        for (CacheOutbox event : events) {
+            failures.increment();
+            int attempts = event.getAttempts() + 1;
+            LambdaUpdateWrapper<CacheOutbox> wrapper = new LambdaUpdateWrapper<CacheOutbox>()
+                    .set(CacheOutbox::getAttempts, attempts)
+                    .eq(CacheOutbox::getId, event.getId())
+                    .eq(CacheOutbox::getOwner, owner);
+            if (attempts >= maxAttempts) {
+                log.error("缓存{}失效失败次数过多，不再重试", event.getCacheKey());
+                wrapper.set(CacheOutbox::getStatus, CacheOutbox.STATUS_FAILED);
+            } else {
+                long backoff = Math.min(100L << Math.min(attempts, 20), 30000L);
+                wrapper.set(CacheOutbox::getNextTime, now.plus(Duration.ofMillis(backoff)));
+            }
+            cacheOutboxMapper.update(null, wrapper);
+        }
+    }
+
+    /**
+     * 删除过期的已完成事件
+     */
+    private void cleanUp() {
+        try {
+            cacheOutboxMapper.delete(new LambdaQueryWrapper<CacheOutbox>()
+                    .eq(CacheOutbox::getStatus, CacheOutbox.STATUS_DONE)
+                    .lt(CacheOutbox::getCreateTime, LocalDateTime.now().minusHours(retentionHours)));
+        } catch (Exception e) {
+            log.error("清理缓存发件箱失败", e);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 统一的缓存重建线程池
+ * 有界队列；同一个key同时只有一个重建任务；每个key前缀同时进行的重建数量有上限；
+ * 队列满或前缀达到上限时按配置丢弃（逻辑过期会继续返回旧数据）或由调用线程执行；
+ * 调用线程执行时同样需要前缀的许可，最多等待 caller-wait-ms，拿不到时丢弃，请求线程不会无限期阻塞
+ * 随Spring关闭时等待正在执行的任务完成
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    private static final String POLICY_CALLER_RUNS = "caller-runs";
+
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+
+    // 每个key前缀同时进行的重建数量
+    @Value("${hmdp.cache.rebuild.max-per-prefix:5}")
+    private int maxPerPrefix;
+
+    // 队列满或前缀达到上限时：drop 丢弃，caller-runs 由调用线程执行
+    @Value("${hmdp.cache.rebuild.reject-policy:drop}")
+    private String rejectPolicy;
+
+    // caller-runs 时调用线程等待前缀许可的最长时间
+    @Value("${hmdp.cache.rebuild.caller-wait-ms:100}")
+    private long callerWaitMillis;
+
+    // 关闭时等待任务完成的最长时间
+    @Value("${hmdp.cache.rebuild.shutdown-timeout-seconds:10}")
+    private long shutdownTimeoutSeconds;
+
+    private ThreadPoolExecutor executor;
+
+    // 正在重建的key
+    private final Set<String> inflightKeys = ConcurrentHashMap.newKeySet();
+
+    // key前缀 -> 并发许可
+    private final Map<String, Semaphore> prefixPermits = new ConcurrentHashMap<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private final LongAdder latencyMillisSum = new LongAdder();
+    private final AtomicLong maxLatencyMillis = new AtomicLong();
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> new Thread(r, "cache-rebuild-" + index.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+            log.warn("缓存重建任务在{}秒内没有完成，剩余{}个任务被丢弃", shutdownTimeoutSeconds, executor.shutdownNow().size());
+        }
+    }
+
+    /**
+     * 提交重建任务
+     * @param keyPrefix key前缀，用于限制并发数量
+     * @param key 缓存key，同一个key正在重建时不再提交
+     * @param task 重建逻辑
+     * @return 是否执行（提交到线程池或由调用线程执行）
+     */
+    public boolean submit(String keyPrefix, String key, Runnable task) {
+        if (!inflightKeys.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        Semaphore permits = prefixPermits.computeIfAbsent(keyPrefix, k -> new Semaphore(maxPerPrefix));
+        Runnable wrapped = () -> run(key, permits, task);
+        if (permits.tryAcquire()) {
+            try {
+                executor.execute(wrapped);
+                submitted.increment();
+                return true;
+            } catch (RejectedExecutionException e) {
+                permits.release();
+            }
+        }
+        // 队列已满，或者这个前缀的重建数量达到上限
+        if (POLICY_CALLER_RUNS.equals(rejectPolicy) && !executor.isShutdown() && tryAcquire(permits)) {
+            callerRuns.increment();
+            wrapped.run();
+            return true;
+        }
+        inflightKeys.remove(key);
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * 队列长度、重建耗时和失败数量
+     */
+    public Map<String, Object> queryStats() {
+        long done = completed.sum() + failed.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("queueDepth", executor.getQueue().size());
+        map.put("activeThreads", executor.getActiveCount());
+        map.put("inflightKeys", inflightKeys.size());
+        map.put("submitted", submitted.sum());
+        map.put("completed", completed.sum());
+        map.put("failed", failed.sum());
+        map.put("deduplicated", deduplicated.sum());
+        map.put("rejected", rejected.sum());
+        map.put("callerRuns", callerRuns.sum());
+        map.put("avgLatencyMillis", done == 0 ? 0 : latencyMillisSum.sum() / done);
+        map.put("maxLatencyMillis", maxLatencyMillis.get());
+        return map;
+    }
+
+    private boolean tryAcquire(Semaphore permits) {
+        try {
+            return permits.tryAcquire(callerWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void run(String key, Semaphore permits, Runnable task) {
+        long begin = System.currentTimeMillis();
+        try {
+            task.run();
+            completed.increment();
+        } catch (Exception e) {
+            failed.increment();
+            log.error("重建缓存{}失败", key, e);
+        } finally {
+            long latency = System.currentTimeMillis() - begin;
+            latencyMillisSum.add(latency);
+            maxLatencyMillis.accumulateAndGet(latency, Math::max);
+            permits.release();
+            inflightKeys.remove(key);
+        }
+    }
+}
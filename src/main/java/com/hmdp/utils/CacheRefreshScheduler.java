@@ -0,0 +1,298 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 逻辑过期缓存的提前刷新
+ * 记录最近被访问的逻辑过期key，在过期前按key前缀分批从数据库加载并写回redis，请求不会读到过期数据
+ * 一段时间没有被访问的key不再刷新
+ * 数据修改后也通过这里注册的加载方式重新加载，用新数据覆盖缓存而不是删除
+ */
+@Slf4j
+@Component
+public class CacheRefreshScheduler {
+
+    @Value("${hmdp.cache.refresh.enabled:true}")
+    private boolean enabled;
+
+    // 距离逻辑过期还剩多久时刷新
+    @Value("${hmdp.cache.refresh.ahead-ms:5000}")
+    private long aheadMillis;
+
+    // 扫描间隔
+    @Value("${hmdp.cache.refresh.interval-ms:1000}")
+    private long intervalMillis;
+
+    // 每批从数据库加载的数量
+    @Value("${hmdp.cache.refresh.batch-size:100}")
+    private int batchSize;
+
+    // 超过该时间没有被访问的key不再刷新
+    @Value("${hmdp.cache.refresh.idle-seconds:300}")
+    private long idleSeconds;
+
+    // 最多记录的key数量
+    @Value("${hmdp.cache.refresh.max-tracked:10000}")
+    private int maxTracked;
+
+    @Autowired
+    private CacheUtil cacheUtil;
+
+    @Autowired
+    private DbLoadLimiter dbLoadLimiter;
+
+    // key前缀 -> 批量加载方式
+    private final Map<String, RefreshSource<?, ?>> sources = new ConcurrentHashMap<>();
+
+    // 缓存key -> 访问记录
+    private final Map<String, TrackedKey> trackedKeys = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private final LongAdder refreshedKeys = new LongAdder();
+    private final LongAdder refreshedBatches = new LongAdder();
+    private final LongAdder failedBatches = new LongAdder();
+    private final LongAdder throttledBatches = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        cacheUtil.setAccessListener(this::recordAccess);
+        refreshExecutor.scheduleWithFixedDelay(this::refresh, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * 注册一个key前缀的批量加载方式，只有注册过的前缀才会被提前刷新
+     * @param keyPrefix key前缀
+     * @param idParser 从key中去掉前缀的部分解析id，数据修改后重新加载时使用
+     * @param batchLoader 根据一批id查询数据库，返回 id -> 对象，不存在的id不返回
+     * @param time 逻辑过期时间
+     * @param unit 时间单位
+     */
+    public <ID, R> void register(String keyPrefix, Function<String, ID> idParser,
+                                 Function<List<ID>, Map<ID, R>> batchLoader, Long time, TimeUnit unit) {
+        sources.put(keyPrefix, new RefreshSource<>(idParser, batchLoader, time, unit));
+    }
+
+    /**
+     * 数据修改后重新加载缓存（由 CacheOutboxRelay 在事务提交后调用）
+     * 注册过的前缀从数据库批量加载，通过 CacheUtil.replaceAll 带版本号覆盖redis并通知各节点删除本地缓存；
+     * 数据已经不存在、id无法解析或前缀没有注册的key直接删除
+     * 不经过 DbLoadLimiter，修改数据的频率远低于读取
+     * @param keys 缓存key
+     */
+    public void reload(Collection<String> keys) {
+        Map<String, List<String>> grouped = new HashMap<>();
+        List<String> deletes = new ArrayList<>();
+        for (String key : keys) {
+            String keyPrefix = prefixOf(key);
+            if (keyPrefix == null) {
+                deletes.add(key);
+            } else {
+                grouped.computeIfAbsent(keyPrefix, k -> new ArrayList<>()).add(key);
+            }
+        }
+        grouped.forEach((keyPrefix, prefixKeys) -> reload(sources.get(keyPrefix), keyPrefix, prefixKeys, deletes));
+        cacheUtil.deleteAll(deletes);
+    }
+
+    /**
+     * 刷新情况
+     */
+    public Map<String, Object> queryStats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("trackedKeys", trackedKeys.size());
+        map.put("refreshedKeys", refreshedKeys.sum());
+        map.put("refreshedBatches", refreshedBatches.sum());
+        map.put("failedBatches", failedBatches.sum());
+        map.put("throttledBatches", throttledBatches.sum());
+        return map;
+    }
+
+    private void recordAccess(String keyPrefix, Object id, long expireAt) {
+        if (!sources.containsKey(keyPrefix)) {
+            return;
+        }
+        String key = keyPrefix + id;
+        TrackedKey trackedKey = trackedKeys.get(key);
+        if (trackedKey == null) {
+            if (trackedKeys.size() >= maxTracked) {
+                return;
+            }
+            trackedKey = trackedKeys.computeIfAbsent(key, k -> new TrackedKey(keyPrefix, id));
+        }
+        trackedKey.expireAt = expireAt;
+        trackedKey.lastAccess = System.currentTimeMillis();
+    }
+
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        long idleBefore = now - TimeUnit.SECONDS.toMillis(idleSeconds);
+        // 按key前缀收集快要过期的key
+        Map<String, List<TrackedKey>> dueKeys = new HashMap<>();
+        trackedKeys.forEach((key, trackedKey) -> {
+            if (trackedKey.lastAccess < idleBefore) {
+                trackedKeys.remove(key, trackedKey);
+            } else if (trackedKey.expireAt - now <= aheadMillis) {
+                dueKeys.computeIfAbsent(trackedKey.keyPrefix, k -> new ArrayList<>()).add(trackedKey);
+            }
+        });
+        dueKeys.forEach((keyPrefix, keys) -> {
+            for (int i = 0; i < keys.size(); i += batchSize) {
+                List<TrackedKey> batch = keys.subList(i, Math.min(i + batchSize, keys.size()));
+                try {
+                    refreshBatch(sources.get(keyPrefix), batch);
+                    refreshedBatches.increment();
+                } catch (Exception e) {
+                    // 本轮刷新失败，请求到来时仍然会走逻辑过期重建
+                    failedBatches.increment();
+                    log.error("刷新缓存{}失败", keyPrefix, e);
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private <ID, R> void refreshBatch(RefreshSource<ID, R> source, List<TrackedKey> batch) {
+        // 其他节点可能已经刷新过，先用一次pipeline读取redis中的过期时间
+        List<String> keys = new ArrayList<>(batch.size());
+        for (TrackedKey trackedKey : batch) {
+            keys.add(trackedKey.key());
+        }
+        long[] expireAts = cacheUtil.readExpireAt(keys);
+        long due = System.currentTimeMillis() + aheadMillis;
+        List<TrackedKey> refreshKeys = new ArrayList<>(batch.size());
+        List<ID> ids = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            TrackedKey trackedKey = batch.get(i);
+            if (expireAts[i] > due) {
+                trackedKey.expireAt = expireAts[i];
+                continue;
+            }
+            refreshKeys.add(trackedKey);
+            ids.add((ID) trackedKey.id);
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        // 大量key同时到期时不抢占请求线程的数据库配额，下一轮扫描再刷新
+        if (!dbLoadLimiter.tryAcquire(ids.size())) {
+            throttledBatches.increment();
+            return;
+        }
+        // 一次查询加载整批数据
+        Map<ID, R> loaded = source.batchLoader.apply(ids);
+        Map<String, Object> values = new HashMap<>(refreshKeys.size() * 2);
+        for (TrackedKey trackedKey : refreshKeys) {
+            R value = loaded.get((ID) trackedKey.id);
+            if (value == null) {
+                // 数据已经被删除
+                cacheUtil.delete(trackedKey.key());
+                trackedKeys.remove(trackedKey.key());
+            } else {
+                values.put(trackedKey.key(), value);
+            }
+        }
+        // 每个key的过期时间随机延长，这里记录最早的，下一轮扫描会读取redis中实际的过期时间
+        long expireAt = cacheUtil.setAllWithLogicalExpire(values, source.time, source.unit);
+        for (TrackedKey trackedKey : refreshKeys) {
+            trackedKey.expireAt = expireAt;
+        }
+        refreshedKeys.add(values.size());
+    }
+
+    private <ID, R> void reload(RefreshSource<ID, R> source, String keyPrefix, List<String> keys, List<String> deletes) {
+        Map<ID, String> idKeys = new LinkedHashMap<>(keys.size() * 2);
+        for (String key : keys) {
+            try {
+                idKeys.put(source.idParser.apply(key.substring(keyPrefix.length())), key);
+            } catch (IllegalArgumentException e) {
+                deletes.add(key);
+            }
+        }
+        if (idKeys.isEmpty()) {
+            return;
+        }
+        Map<ID, R> loaded = source.batchLoader.apply(new ArrayList<>(idKeys.keySet()));
+        Map<String, Object> values = new HashMap<>(idKeys.size() * 2);
+        idKeys.forEach((id, key) -> {
+            R value = loaded.get(id);
+            if (value == null) {
+                // 数据已经被删除
+                deletes.add(key);
+            } else {
+                values.put(key, value);
+            }
+        });
+        cacheUtil.replaceAll(values, source.time, source.unit);
+    }
+
+    /**
+     * key所属的已注册前缀，有多个时取最长的
+     */
+    private String prefixOf(String key) {
+        String prefix = null;
+        for (String keyPrefix : sources.keySet()) {
+            if (key.startsWith(keyPrefix) && (prefix == null || keyPrefix.length() > prefix.length())) {
+                prefix = keyPrefix;
+            }
+        }
+        return prefix;
+    }
+
+    private static class RefreshSource<ID, R> {
+        private final Function<String, ID> idParser;
+        private final Function<List<ID>, Map<ID, R>> batchLoader;
+        private final Long time;
+        private final TimeUnit unit;
+
+        private RefreshSource(Function<String, ID> idParser, Function<List<ID>, Map<ID, R>> batchLoader,
+                              Long time, TimeUnit unit) {
+            this.idParser = idParser;
+            this.batchLoader = batchLoader;
+            this.time = time;
+            this.unit = unit;
+        }
+    }
+
+    private static class TrackedKey {
+        private final String keyPrefix;
+        private final Object id;
+        private volatile long expireAt;
+        private volatile long lastAccess;
+
+        private TrackedKey(String keyPrefix, Object id) {
+            this.keyPrefix = keyPrefix;
+            this.id = id;
+        }
+
+        private String key() {
+            return keyPrefix + id;
+        }
+    }
+}
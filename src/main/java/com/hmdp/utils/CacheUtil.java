@@ -1,49 +1,303 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * 工具类，处理缓存击穿
+ * 两级缓存：一级为本地缓存（Caffeine，保存反序列化后的对象），二级为redis
+ * 热点key另外保存一份短期的本地副本（HotKeyDetector），关闭本地缓存时也不会集中访问redis
+ * redis中的值通过 CacheCodec 序列化，读取时同时兼容二进制格式和原来的json格式
+ * 注册了版本号的类型（更新时间）通过 cache_cas.lua 写入，慢的重建不会用旧数据覆盖redis中更新的数据
+ * 写入的过期时间（redis TTL和逻辑过期时间）随机延长，查询数据库前经过 DbLoadLimiter 限流，防止缓存雪崩
+ * 超过 compress-threshold 的值在二进制格式中用LZ4压缩，每个key前缀统计压缩率和压缩、解压耗时
  */
 
 @Component
 @Slf4j
 public class CacheUtil {
 
-    // 创建线程池
-    private static final ExecutorService CACHE_REBUIld__EXECTOR= Executors.newFixedThreadPool(10);
+    // 本地缓存中的空值标记（解决缓存穿透）
+    private static final Object NULL_VALUE = new Object();
+
+    // redis中的空值
+    private static final byte[] EMPTY = new byte[0];
+
+    // 带版本号写入，不覆盖更高的版本
+    private static final byte[] CACHE_CAS_SCRIPT;
+
+    static {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("cache_cas.lua"));
+        CACHE_CAS_SCRIPT = script.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 类型 -> 取出更新时间，作为缓存的版本号
+    private final Map<Class<?>, Function<Object, LocalDateTime>> versionGetters = new ConcurrentHashMap<>();
+
+    private CacheCodec binaryCodec;
+
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+
+    // 写入redis使用的格式：binary 或 json（回滚时使用）
+    @Value("${hmdp.cache.codec:binary}")
+    private String codecName;
+
+    private CacheCodec writeCodec;
+
+    // 二进制格式中对象部分超过该字节数时压缩
+    @Value("${hmdp.cache.compress-threshold:1024}")
+    private int compressThreshold;
 
     private final StringRedisTemplate redisTemplate;
 
-    public CacheUtil(StringRedisTemplate redisTemplate) {
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final IdBloomFilter idBloomFilter;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    private final DbLoadLimiter dbLoadLimiter;
+
+    // 过期时间随机延长的最大比例，同一批写入的key不会同时过期
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+
+    // 是否开启本地缓存
+    @Value("${hmdp.cache.local.enabled:true}")
+    private boolean localCacheEnabled;
+
+    // 本地缓存最大条数
+    @Value("${hmdp.cache.local.maximum-size:10000}")
+    private long localCacheMaximumSize;
+
+    // 本地缓存过期时间，也是跨节点数据不一致的最长时间
+    @Value("${hmdp.cache.local.expire-seconds:10}")
+    private long localCacheExpireSeconds;
+
+    // 一级缓存：key -> 对象（逻辑过期的key保存 LocalEntry）
+    private Cache<String, Object> localCache;
+
+    // 提前刷新模式的参数，大于1时更早刷新
+    @Value("${hmdp.cache.xfetch.beta:1.0}")
+    private double xfetchBeta;
+
+    // 等待其他节点释放重建锁的最长时间，超时后直接查询数据库
+    @Value("${hmdp.cache.load-timeout-ms:3000}")
+    private long loadTimeoutMillis;
+
+    // 正在加载的key -> 加载结果
+    private final Map<String, CompletableFuture<Object>> inflightLoads = new ConcurrentHashMap<>();
+
+    // 逻辑过期的key被访问时的回调
+    private volatile AccessListener accessListener;
+
+    // 每个key前缀的命中统计
+    private final Map<String, CacheStats> cacheStats = new ConcurrentHashMap<>();
+
+    public CacheUtil(StringRedisTemplate redisTemplate, RedisMessageListenerContainer listenerContainer,
+                     IdBloomFilter idBloomFilter, HotKeyDetector hotKeyDetector,
+                     CacheRebuildExecutor rebuildExecutor, DbLoadLimiter dbLoadLimiter) {
         this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.idBloomFilter = idBloomFilter;
+        this.hotKeyDetector = hotKeyDetector;
+        this.rebuildExecutor = rebuildExecutor;
+        this.dbLoadLimiter = dbLoadLimiter;
+    }
+
+    @PostConstruct
+    private void init() {
+        binaryCodec = new BinaryCacheCodec(compressThreshold);
+        writeCodec = "json".equals(codecName) ? jsonCodec : binaryCodec;
+        localCache = Caffeine.newBuilder()
+                .maximumSize(localCacheMaximumSize)
+                .expireAfterWrite(localCacheExpireSeconds, TimeUnit.SECONDS)
+                .build();
+        // 其他节点删除缓存时，同步删除本地缓存
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            localCache.invalidate(key);
+            hotKeyDetector.invalidate(key);
+        }, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 注册类型的版本号，之后该类型的缓存带版本号写入，redis中已有更新的版本时不写入
+     * @param type 缓存的类型
+     * @param updateTimeGetter 取出更新时间（update_time）
+     */
+    @SuppressWarnings("unchecked")
+    public <R> void registerVersion(Class<R> type, Function<R, LocalDateTime> updateTimeGetter) {
+        versionGetters.put(type, (Function<Object, LocalDateTime>) updateTimeGetter);
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
-        redisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        write(key, value, CacheCodec.NO_EXPIRE, time, unit);
     }
 
     // 逻辑过期，防止缓存击穿
     public void setWithLogicalExpire(String key,Object value,Long time,TimeUnit unit){
         // 设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        // 写入redis中
-        redisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        long expireAt = System.currentTimeMillis() + jitter(unit.toMillis(time));
+        // 写入redis中，版本号比redis中的低时不写入，本地缓存也不保存
+        if (write(key, value, expireAt, null, null)) {
+            putLocal(key, new LocalEntry(value, expireAt));
+        }
+    }
+
+    /**
+     * 批量写入逻辑过期的缓存，使用一次pipeline
+     * 每个key的逻辑过期时间分别随机延长，同一批写入的key不会在同一时刻过期
+     * @param values key -> 对象
+     * @return 这一批中最早的逻辑过期时间
+     */
+    public long setAllWithLogicalExpire(Map<String, Object> values, Long time, TimeUnit unit) {
+        long now = System.currentTimeMillis();
+        long ttlMillis = unit.toMillis(time);
+        if (values.isEmpty()) {
+            return now + ttlMillis;
+        }
+        List<String> keys = new ArrayList<>(values.keySet());
+        long[] expireAts = new long[keys.size()];
+        for (int i = 0; i < expireAts.length; i++) {
+            expireAts[i] = now + jitter(ttlMillis);
+        }
+        List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < keys.size(); i++) {
+                String key = keys.get(i);
+                Object value = values.get(key);
+                long version = versionOf(value);
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                byte[] bytes = encode(key, value, expireAts[i], version, 0);
+                if (version == CacheCodec.NO_VERSION) {
+                    connection.set(rawKey, bytes);
+                } else {
+                    connection.eval(CACHE_CAS_SCRIPT, ReturnType.INTEGER, 1, rawKey, bytes, toBytes(version), toBytes(0));
+                }
+            }
+            return null;
+        });
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < keys.size(); i++) {
+            earliest = Math.min(earliest, expireAts[i]);
+            // 版本号比redis中的低，没有写入
+            if (!Long.valueOf(0).equals(results.get(i))) {
+                putLocal(keys.get(i), new LocalEntry(values.get(keys.get(i)), expireAts[i]));
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * 使用一次pipeline读取一批key的逻辑过期时间，不解析对象
+     * @return 与keys顺序一致，不存在的key为 CacheCodec.NO_EXPIRE
+     */
+    public long[] readExpireAt(List<String> keys) {
+        List<Object> values = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.get(key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        }, RedisSerializer.byteArray());
+        long[] expireAts = new long[keys.size()];
+        for (int i = 0; i < expireAts.length; i++) {
+            byte[] bytes = (byte[]) values.get(i);
+            expireAts[i] = bytes == null || bytes.length == 0 ? CacheCodec.NO_EXPIRE : codecFor(bytes).readExpireAt(bytes);
+        }
+        return expireAts;
+    }
+
+    public void setAccessListener(AccessListener accessListener) {
+        this.accessListener = accessListener;
+    }
+
+    /**
+     * 删除缓存：删除redis和本地缓存，并通知其他节点删除本地缓存
+     * @param key
+     */
+    public void delete(String key) {
+        redisTemplate.delete(key);
+        localCache.invalidate(key);
+        hotKeyDetector.invalidate(key);
+        redisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 批量删除缓存：一次 DEL 删除redis，并通知其他节点删除本地缓存
+     * @param keys
+     */
+    public void deleteAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        redisTemplate.delete(keys);
+        publishInvalidate(keys);
+    }
+
+    /**
+     * 数据修改后用新数据覆盖逻辑过期的缓存，并通知其他节点删除本地缓存
+     * 与删除相比：带版本号写入，之后完成的慢重建不能再用旧数据覆盖；key也不会在下一次加载前变成不存在
+     * @param values key -> 对象
+     */
+    public void replaceAll(Map<String, Object> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        setAllWithLogicalExpire(values, time, unit);
+        publishInvalidate(values.keySet());
+    }
+
+    /**
+     * 删除本节点的本地缓存，并用一次pipeline通知其他节点
+     */
+    private void publishInvalidate(Collection<String> keys) {
+        byte[] channel = RedisConstants.CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                localCache.invalidate(key);
+                hotKeyDetector.invalidate(key);
+                connection.publish(channel, key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
     }
 
     // get 解决缓存穿透，
@@ -58,35 +312,230 @@ public class CacheUtil {
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
         String key = keyPrefix + id;
+        CacheStats stats = stats(keyPrefix);
+        // 0: 布隆过滤器判断id一定不存在，直接返回，不访问redis和数据库
+        if (!idBloomFilter.mightContain(keyPrefix, id)) {
+            stats.bloomRejects.increment();
+            return null;
+        }
+        // 查询本地缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            stats.localHits.increment();
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
         // 1: 从redis查询商铺缓存
-        String json = redisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
         // 2: 判断是否存在
-        if(StringUtils.hasText(json)){
+        if(bytes != null && bytes.length > 0){
             // 3: 存在，直接返回
-            return JSONUtil.toBean(json, type);
+            stats.redisHits.increment();
+            R r = decode(key, codecFor(bytes), bytes, type);
+            putLocal(key, r);
+            return r;
 
         }
 
         // 如果存入的是空值(解决缓存击穿)，返回错误
-        if("".equals(json)){
+        if(bytes != null){
+            stats.redisHits.increment();
+            putLocal(key, NULL_VALUE);
             return null;
         }
 
-        // 查询数据库，取出商铺
-        R r = dbFallback.apply(id);
+        // 4: 未命中，同一节点的并发请求合并为一次加载，只有一个线程去竞争分布式锁
+        stats.misses.increment();
+        Object value = loadSingleFlight(key, type, () -> loadWithMutex(key, id, type, dbFallback, time, unit));
+        return value == NULL_VALUE ? null : type.cast(value);
 
-        // 不存在，返回错误
-        if(Objects.isNull(r)){
-            redisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL,TimeUnit.MINUTES);
-            return null;
+    }
+
+    /**
+     * 批量查询逻辑过期的缓存，与 queryWithLogicalExpire 使用同一批key
+     * 先查本地缓存，剩下的用一次 MGET 读取redis，未命中的用一次数据库查询加载，再用一次pipeline写回
+     * 已经逻辑过期的数据直接返回，由刷新调度器或单个查询负责重建
+     * @param keyPrefix key前缀
+     * @param ids id列表
+     * @param type 对象类型
+     * @param dbFallback 根据一批id查询数据库，例如 listByIds
+     * @param idGetter 从对象中取出id
+     * @return 按ids的顺序返回，不存在的id跳过
+     */
+    public <R,ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type,
+            Function<List<ID>, List<R>> dbFallback, Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        CacheStats stats = stats(keyPrefix);
+        long now = System.currentTimeMillis();
+        Object[] values = new Object[ids.size()];
+        // 1: 查询本地缓存，布隆过滤器判断一定不存在的id跳过
+        List<Integer> remoteIndexes = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (!idBloomFilter.mightContain(keyPrefix, ids.get(i))) {
+                stats.bloomRejects.increment();
+                continue;
+            }
+            Object local = getLocal(keyPrefix + ids.get(i));
+            if (local instanceof LocalEntry && ((LocalEntry) local).expireAt > now) {
+                stats.localHits.increment();
+                values[i] = ((LocalEntry) local).value;
+                onAccess(keyPrefix, ids.get(i), ((LocalEntry) local).expireAt);
+            } else {
+                remoteIndexes.add(i);
+            }
+        }
+        if (!remoteIndexes.isEmpty()) {
+            // 2: 一次 MGET 读取redis
+            byte[][] rawKeys = new byte[remoteIndexes.size()][];
+            for (int i = 0; i < rawKeys.length; i++) {
+                rawKeys[i] = (keyPrefix + ids.get(remoteIndexes.get(i))).getBytes(StandardCharsets.UTF_8);
+            }
+            List<byte[]> cached = redisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+            Map<ID, Integer> missIndexes = new HashMap<>();
+            for (int i = 0; i < rawKeys.length; i++) {
+                int index = remoteIndexes.get(i);
+                ID id = ids.get(index);
+                byte[] bytes = cached == null ? null : cached.get(i);
+                if (bytes == null || bytes.length == 0) {
+                    missIndexes.put(id, index);
+                    continue;
+                }
+                stats.redisHits.increment();
+                CacheCodec codec = codecFor(bytes);
+                long expireAt = codec.readExpireAt(bytes);
+                R r = decode(keyPrefix + id, codec, bytes, type);
+                values[index] = r;
+                putLocal(keyPrefix + id, new LocalEntry(r, expireAt));
+                onAccess(keyPrefix, id, expireAt);
+            }
+            // 3: 未命中的id用一次数据库查询加载，并用一次pipeline写回
+            if (!missIndexes.isEmpty()) {
+                stats.misses.add(missIndexes.size());
+                dbLoadLimiter.acquire(missIndexes.size());
+                Map<String, Object> loaded = new HashMap<>(missIndexes.size() * 2);
+                for (R r : dbFallback.apply(new ArrayList<>(missIndexes.keySet()))) {
+                    ID id = idGetter.apply(r);
+                    Integer index = missIndexes.get(id);
+                    if (index != null) {
+                        values[index] = r;
+                        loaded.put(keyPrefix + id, r);
+                    }
+                }
+                setAllWithLogicalExpire(loaded, time, unit);
+            }
+        }
+        List<R> result = new ArrayList<>(values.length);
+        for (Object value : values) {
+            if (value != null) {
+                result.add(type.cast(value));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 同一个key的并发加载只执行一次，其余线程在future上等待结果，而不是休眠后递归重试
+     * 加载的线程最多等锁 loadTimeoutMillis，之后自己查询数据库，所以等待的线程最多等待两倍的时间，
+     * 覆盖等锁和查询数据库；仍然超时时从redis读取，redis中也没有才失败
+     * @param key 缓存key
+     * @param type 对象类型，等待超时后从redis读取时使用
+     * @param loader 加载逻辑
+     * @return 加载结果，不存在时为 NULL_VALUE
+     */
+    private Object loadSingleFlight(String key, Class<?> type, Supplier<Object> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inflight = inflightLoads.putIfAbsent(key, future);
+        if (inflight != null) {
+            // 已经有线程在加载，等待它的结果
+            try {
+                return inflight.get(2 * loadTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                Object cached = readPassThrough(key, type);
+                if (cached != null) {
+                    return cached;
+                }
+                log.warn("等待缓存{}重建超时", key);
+                throw new RuntimeException("缓存重建超时", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
         }
+        try {
+            Object value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflightLoads.remove(key, future);
+        }
+    }
 
-        // 存在，写入缓存中
+    /**
+     * 获取互斥锁后查询数据库并写入缓存；其他节点持有锁时，等待它写入redis后直接读取
+     */
+    private <R,ID> Object loadWithMutex(String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        String lockKey = lockKey(key);
+        long deadline = System.currentTimeMillis() + loadTimeoutMillis;
+        while (!tryLock(lockKey)) {
+            // 其他节点正在重建，稍后从redis读取
+            sleep(50);
+            Object cached = readPassThrough(key, type);
+            if (cached != null) {
+                return cached;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                // 等待超时，不再等锁，直接查询数据库
+                log.warn("等待缓存{}的互斥锁超时，直接查询数据库", key);
+                dbLoadLimiter.acquire(1);
+                return writePassThrough(key, dbFallback.apply(id), time, unit);
+            }
+        }
+        try {
+            // 获取锁成功后再次检查redis，其他节点可能刚刚重建完成
+            Object cached = readPassThrough(key, type);
+            if (cached != null) {
+                return cached;
+            }
+            // 查询数据库，取出商铺
+            dbLoadLimiter.acquire(1);
+            return writePassThrough(key, dbFallback.apply(id), time, unit);
+        } finally {
+            deleteLock(lockKey);
+        }
+    }
 
-        this.set(key,JSONUtil.toJsonStr(r),time,unit);
+    /**
+     * 读取redis中的缓存
+     * @return 对象；空值返回 NULL_VALUE；不存在返回null
+     */
+    private <R> Object readPassThrough(String key, Class<R> type) {
+        byte[] bytes = getBytes(key);
+        if (bytes == null) {
+            return null;
+        }
+        Object value = bytes.length == 0 ? NULL_VALUE : decode(key, codecFor(bytes), bytes, type);
+        putLocal(key, value);
+        return value;
+    }
 
+    private Object writePassThrough(String key, Object r, Long time, TimeUnit unit) {
+        // 不存在，缓存空值
+        if(Objects.isNull(r)){
+            setBytes(key, EMPTY, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putLocal(key, NULL_VALUE);
+            return NULL_VALUE;
+        }
+        // 存在，写入缓存中；redis中已有更新的版本时本地缓存不保存这份旧数据
+        if (write(key, r, CacheCodec.NO_EXPIRE, time, unit)) {
+            putLocal(key, r);
+        }
         return r;
-
     }
 
 
@@ -99,54 +548,350 @@ public class CacheUtil {
 
     public <R,ID> R queryWithLogicalExpire(
             ID id, String keyPrefix, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
-        // 从缓存中获取商铺
         String key = keyPrefix+id;
-        String json = redisTemplate.opsForValue().get(key);
-        // 判断是否存在
-        if (StrUtil.isBlank(json)){
-            // 不存在，直接返回
+        CacheStats stats = stats(keyPrefix);
+        // 0: 布隆过滤器判断id一定不存在，直接返回，不访问redis
+        if (!idBloomFilter.mightContain(keyPrefix, id)) {
+            stats.bloomRejects.increment();
+            return null;
+        }
+        // 0: 本地缓存命中且未逻辑过期，直接返回；已过期则走redis判断是否需要重建
+        Object local = getLocal(key);
+        long now = System.currentTimeMillis();
+        if (local == NULL_VALUE) {
+            stats.localHits.increment();
             return null;
         }
-        // 4:命中，将json转化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        // 获取店铺
-        JSONObject jsonObject = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(jsonObject, type);
+        if (local instanceof LocalEntry && ((LocalEntry) local).expireAt > now) {
+            stats.localHits.increment();
+            onAccess(keyPrefix, id, ((LocalEntry) local).expireAt);
+            return type.cast(((LocalEntry) local).value);
+        }
+        // 从缓存中获取商铺
+        byte[] bytes = getBytes(key);
+        // 空值：数据库中不存在
+        if (bytes != null && bytes.length == 0) {
+            stats.redisHits.increment();
+            putLocal(key, NULL_VALUE);
+            return null;
+        }
+        // 不存在（没有预热、预热失败或被删除），同步加载，本节点的并发请求合并为一次
+        if (bytes == null){
+            stats.misses.increment();
+            Object value = loadSingleFlight(key, type, () -> {
+                dbLoadLimiter.acquire(1);
+                R r = dbFallback.apply(id);
+                if (r == null) {
+                    setBytes(key, EMPTY, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                    putLocal(key, NULL_VALUE);
+                    return NULL_VALUE;
+                }
+                setWithLogicalExpire(key, r, time, unit);
+                return r;
+            });
+            return value == NULL_VALUE ? null : type.cast(value);
+        }
+        stats.redisHits.increment();
+        // 4:命中，先只读取逻辑过期时间
+        CacheCodec codec = codecFor(bytes);
+        long expireAt = codec.readExpireAt(bytes);
+        // 本地缓存中是同一版本的数据（过期时间相同），不需要再反序列化
+        R r = local instanceof LocalEntry && ((LocalEntry) local).expireAt == expireAt
+                ? type.cast(((LocalEntry) local).value)
+                : decode(key, codec, bytes, type);
+        onAccess(keyPrefix, id, expireAt);
         // 5：判断是否过期
-        LocalDateTime expireTime = redisData.getExpireTime();
-        if(expireTime.isAfter(LocalDateTime.now())){
+        if(expireAt > now){
             // 5.1：未过期，直接返回redis信息
+            putLocal(key, new LocalEntry(r, expireAt));
             return r;
         }
 
         // 5.2 已过期，需要从数据库查询，重新缓存
-        String lockKey = RedisConstants.LOCK_SHOP_KEY+id;
-        // 6: 获取互斥锁
-        boolean flag = tryLock(lockKey);
-        // 6.1: 判断是否获取锁成功
-        if(flag){
-            // 注意：获取锁成功后应该再次监测redis缓存是否过期，做 doubleCheck，如果存在则无需重建缓存
-            // 6.2: 成功，建立新的线程，实现缓存创建
-            CACHE_REBUIld__EXECTOR.submit(()->{
-                try{
-                    // 查询数据库，取出商铺
-                    R r1 = dbFallback.apply(id);
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                }catch (Exception e){
-                    throw  new RuntimeException(e);
-                }finally {
-                    this.deleteLock(lockKey);
+        // 6: 提交到重建线程池，本节点同一个key只会提交一次；队列满时不重建，继续返回旧数据
+        rebuildExecutor.submit(keyPrefix, key, () -> {
+            String lockKey = lockKey(key);
+            // 6.1: 获取互斥锁，其他节点正在重建时直接返回
+            if (!tryLock(lockKey)) {
+                return;
+            }
+            try {
+                // 6.2: 获取锁成功后再次检查redis缓存是否过期，其他节点可能已经重建完成
+                long[] current = readExpireAt(Collections.singletonList(key));
+                if (current[0] > System.currentTimeMillis()) {
+                    return;
+                }
+                // 6.3: 数据库加载达到限流，本次不重建，之后的请求会再次提交
+                if (!dbLoadLimiter.tryAcquire(1)) {
+                    return;
+                }
+                // 查询数据库，取出商铺
+                R r1 = dbFallback.apply(id);
+                if (r1 == null) {
+                    // 数据已经被删除
+                    delete(key);
+                    return;
+                }
+                this.setWithLogicalExpire(key, r1, time, unit);
+            } finally {
+                this.deleteLock(lockKey);
+            }
+        });
+
+
+        // 6.4: 返回过期的数据
+        return  r;
+
+
+    }
+
+    /**
+     * 概率提前刷新（XFetch）：缓存中同时保存过期时间和上一次重建的耗时（delta），并设置同样的redis过期时间
+     * 每个读请求根据 XFetch 自行决定是否在过期前提前刷新，提前刷新提交到重建线程池，不需要获取互斥锁
+     * 只有key不存在（第一次访问或没有请求提前刷新）时才同步加载，本节点的并发请求合并为一次
+     */
+    public <R,ID> R queryWithEarlyRefresh(
+            String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        String key = keyPrefix + id;
+        CacheStats stats = stats(keyPrefix);
+        if (!idBloomFilter.mightContain(keyPrefix, id)) {
+            stats.bloomRejects.increment();
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        LocalEntry entry = null;
+        // 1: 查询本地缓存
+        Object local = getLocal(key);
+        if (local == NULL_VALUE) {
+            stats.localHits.increment();
+            return null;
+        }
+        if (local instanceof LocalEntry && ((LocalEntry) local).expireAt > now) {
+            stats.localHits.increment();
+            entry = (LocalEntry) local;
+        } else {
+            // 2: 查询redis
+            byte[] bytes = getBytes(key);
+            if (bytes != null && bytes.length == 0) {
+                stats.redisHits.increment();
+                putLocal(key, NULL_VALUE);
+                return null;
+            }
+            if (bytes != null) {
+                CacheCodec codec = codecFor(bytes);
+                long expireAt = codec.readExpireAt(bytes);
+                if (expireAt > now) {
+                    stats.redisHits.increment();
+                    entry = new LocalEntry(decode(key, codec, bytes, type), expireAt, codec.readDelta(bytes));
+                    putLocal(key, entry);
+                }
+            }
+        }
+        // 3: 不存在，同步加载
+        if (entry == null) {
+            stats.misses.increment();
+            Object value = loadSingleFlight(key, type, () -> {
+                dbLoadLimiter.acquire(1);
+                return recompute(key, id, dbFallback, time, unit);
+            });
+            return value == NULL_VALUE ? null : type.cast(value);
+        }
+        // 4: 命中，按概率决定是否提前刷新
+        if (XFetch.shouldRefresh(now, entry.expireAt, entry.delta, xfetchBeta)) {
+            rebuildExecutor.submit(keyPrefix, key, () -> {
+                // 数据库加载达到限流时不提前刷新，之后的读请求会再次判断
+                if (dbLoadLimiter.tryAcquire(1)) {
+                    recompute(key, id, dbFallback, time, unit);
                 }
             });
         }
+        return type.cast(entry.value);
+    }
+
+    /**
+     * 查询数据库并写入缓存，同时记录重建耗时
+     * @return 对象；不存在时为 NULL_VALUE
+     */
+    private <R,ID> Object recompute(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        if (r == null) {
+            setBytes(key, EMPTY, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putLocal(key, NULL_VALUE);
+            return NULL_VALUE;
+        }
+        long end = System.currentTimeMillis();
+        int delta = (int) Math.max(1, end - begin);
+        // redis的TTL在写入时会再随机延长，不会早于逻辑过期时间
+        long ttlMillis = jitter(unit.toMillis(time));
+        long expireAt = end + ttlMillis;
+        if (write(key, r, expireAt, delta, ttlMillis, TimeUnit.MILLISECONDS)) {
+            putLocal(key, new LocalEntry(r, expireAt, delta));
+        }
+        return r;
+    }
 
+    /**
+     * 各个key前缀的命中情况
+     * @return key前缀 -> 统计
+     */
+    public Map<String, Map<String, Object>> queryStats() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        cacheStats.forEach((prefix, stats) -> result.put(prefix, stats.toMap()));
+        return result;
+    }
 
-        // 6.3: 失败，返回过期的数据
-        return  r;
+    /**
+     * 根据数据头部选择解析方式，兼容迁移前写入的json
+     */
+    private CacheCodec codecFor(byte[] bytes) {
+        return binaryCodec.supports(bytes) ? binaryCodec : jsonCodec;
+    }
+
+    /**
+     * 写入redis，注册了版本号的类型通过 cache_cas.lua 写入
+     * @param time 为null时不设置过期时间（逻辑过期）
+     * @return 是否写入，redis中的版本更高时返回false
+     */
+    private boolean write(String key, Object value, long expireAt, Long time, TimeUnit unit) {
+        return write(key, value, expireAt, 0, time, unit);
+    }
+
+    private boolean write(String key, Object value, long expireAt, int deltaMillis, Long time, TimeUnit unit) {
+        long version = versionOf(value);
+        byte[] bytes = encode(key, value, expireAt, version, deltaMillis);
+        if (version == CacheCodec.NO_VERSION) {
+            setBytes(key, bytes, time, unit);
+            return true;
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        long ttlMillis = time == null ? 0 : jitter(unit.toMillis(time));
+        Long result = redisTemplate.execute((RedisCallback<Long>) connection -> connection.eval(
+                CACHE_CAS_SCRIPT, ReturnType.INTEGER, 1, rawKey, bytes, toBytes(version), toBytes(ttlMillis)));
+        if (Long.valueOf(0).equals(result)) {
+            log.debug("缓存{}已有更新的版本，版本{}的数据不再写入", key, version);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 序列化并统计写入的字节数，压缩过的值同时统计耗时
+     */
+    private byte[] encode(String key, Object value, long expireAt, long version, int deltaMillis) {
+        long begin = System.nanoTime();
+        byte[] bytes = writeCodec.encode(value, expireAt, version, deltaMillis);
+        CacheStats stats = statsForKey(key);
+        stats.encodedValues.increment();
+        stats.rawBytes.add(writeCodec.rawLength(bytes));
+        stats.storedBytes.add(bytes.length);
+        if (writeCodec.isCompressed(bytes)) {
+            stats.compressedValues.increment();
+            stats.compressNanos.add(System.nanoTime() - begin);
+        }
+        return bytes;
+    }
+
+    /**
+     * 反序列化，压缩过的值统计解压耗时
+     */
+    private <R> R decode(String key, CacheCodec codec, byte[] bytes, Class<R> type) {
+        if (!codec.isCompressed(bytes)) {
+            return codec.decode(bytes, type);
+        }
+        long begin = System.nanoTime();
+        R r = codec.decode(bytes, type);
+        CacheStats stats = statsForKey(key);
+        stats.decompressedValues.increment();
+        stats.decompressNanos.add(System.nanoTime() - begin);
+        return r;
+    }
+
+    private long versionOf(Object value) {
+        Function<Object, LocalDateTime> getter = value == null ? null : versionGetters.get(value.getClass());
+        LocalDateTime updateTime = getter == null ? null : getter.apply(value);
+        return updateTime == null ? CacheCodec.NO_VERSION : updateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static byte[] toBytes(long value) {
+        return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] getBytes(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    /**
+     * @param time 为null时不设置过期时间（逻辑过期），否则随机延长
+     */
+    private void setBytes(String key, byte[] value, Long time, TimeUnit unit) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.milliseconds(jitter(unit.toMillis(time)));
+        redisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    private long jitter(long ttlMillis) {
+        return TtlJitter.apply(ttlMillis, ttlJitter);
+    }
+
+    private void onAccess(String keyPrefix, Object id, long expireAt) {
+        AccessListener listener = accessListener;
+        if (listener != null) {
+            listener.onAccess(keyPrefix, id, expireAt);
+        }
+    }
+
+    /**
+     * 每次读取都会经过这里，同时记录热点key
+     */
+    private Object getLocal(String key) {
+        hotKeyDetector.record(key);
+        Object value = localCacheEnabled ? localCache.getIfPresent(key) : null;
+        return value != null ? value : hotKeyDetector.getIfHot(key);
+    }
+
+    private void putLocal(String key, Object value) {
+        if (localCacheEnabled && value != null) {
+            localCache.put(key, value);
+        }
+        hotKeyDetector.putIfHot(key, value);
+    }
+
+    private CacheStats stats(String keyPrefix) {
+        return cacheStats.computeIfAbsent(keyPrefix, k -> new CacheStats());
+    }
+
+    /**
+     * 写入时只知道完整的key：使用已经统计过的最长前缀，没有时取最后一个冒号之前的部分
+     */
+    private CacheStats statsForKey(String key) {
+        String prefix = null;
+        for (String keyPrefix : cacheStats.keySet()) {
+            if (key.startsWith(keyPrefix) && (prefix == null || keyPrefix.length() > prefix.length())) {
+                prefix = keyPrefix;
+            }
+        }
+        return stats(prefix != null ? prefix : key.substring(0, key.lastIndexOf(':') + 1));
+    }
 
 
+    /**
+     * 缓存key对应的互斥锁，例如 lock:cache:shop:1
+     */
+    private static String lockKey(String key) {
+        return "lock:" + key;
     }
 
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
 
     /**
      * 添加互斥锁
@@ -166,6 +911,76 @@ public class CacheUtil {
     private void deleteLock(String key){
         redisTemplate.delete(key);
     }
+
+    /**
+     * 逻辑过期的key被访问（本地缓存或redis命中）
+     */
+    public interface AccessListener {
+        void onAccess(String keyPrefix, Object id, long expireAt);
+    }
+
+    /**
+     * 本地缓存中逻辑过期的数据
+     */
+    private static class LocalEntry {
+        private final Object value;
+        private final long expireAt;
+        // 重建耗时，提前刷新模式使用
+        private final int delta;
+
+        private LocalEntry(Object value, long expireAt) {
+            this(value, expireAt, 0);
+        }
+
+        private LocalEntry(Object value, long expireAt, int delta) {
+            this.value = value;
+            this.expireAt = expireAt;
+            this.delta = delta;
+        }
+    }
+
+    /**
+     * 命中统计：本地缓存命中、redis命中、未命中（查询数据库或返回空）、布隆过滤器拦截
+     * 写入统计：压缩前后的字节数、压缩的值的编码耗时（含序列化）、解码耗时（含反序列化）
+     */
+    private static class CacheStats {
+        private final LongAdder localHits = new LongAdder();
+        private final LongAdder redisHits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder bloomRejects = new LongAdder();
+        private final LongAdder encodedValues = new LongAdder();
+        private final LongAdder compressedValues = new LongAdder();
+        private final LongAdder rawBytes = new LongAdder();
+        private final LongAdder storedBytes = new LongAdder();
+        private final LongAdder compressNanos = new LongAdder();
+        private final LongAdder decompressedValues = new LongAdder();
+        private final LongAdder decompressNanos = new LongAdder();
+
+        private Map<String, Object> toMap() {
+            long local = localHits.sum();
+            long redis = redisHits.sum();
+            long miss = misses.sum();
+            long total = local + redis + miss;
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("localHits", local);
+            map.put("redisHits", redis);
+            map.put("misses", miss);
+            map.put("bloomRejects", bloomRejects.sum());
+            map.put("localHitRatio", total == 0 ? 0 : (double) local / total);
+            map.put("hitRatio", total == 0 ? 0 : (double) (local + redis) / total);
+            long raw = rawBytes.sum();
+            long compressed = compressedValues.sum();
+            long decompressed = decompressedValues.sum();
+            map.put("encodedValues", encodedValues.sum());
+            map.put("compressedValues", compressed);
+            map.put("rawBytes", raw);
+            map.put("storedBytes", storedBytes.sum());
+            map.put("compressionRatio", raw == 0 ? 1 : (double) storedBytes.sum() / raw);
+            map.put("avgCompressMicros", compressed == 0 ? 0 : compressNanos.sum() / 1000.0 / compressed);
+            map.put("avgDecompressMicros", decompressed == 0 ? 0 : decompressNanos.sum() / 1000.0 / decompressed);
+            return map;
+        }
+    }
 }
 
 
@@ -0,0 +1,105 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存未命中时查询数据库的全局限流（本节点）
+ * 大量key同时过期时，所有前缀的加载共用一个令牌桶，数据库的查询速率不超过配置值
+ * 请求线程上的加载最多等待 max-wait-ms，超时后请求失败；后台重建拿不到令牌时跳过，继续返回旧数据
+ */
+@Slf4j
+@Component
+public class DbLoadLimiter {
+
+    @Value("${hmdp.cache.db-load.enabled:true}")
+    private boolean enabled;
+
+    // 每秒允许的数据库加载次数（批量加载按id数量计算）
+    @Value("${hmdp.cache.db-load.permits-per-second:500}")
+    private double permitsPerSecond;
+
+    // 允许的突发数量
+    @Value("${hmdp.cache.db-load.burst:100}")
+    private double burst;
+
+    // 请求线程等待令牌的最长时间
+    @Value("${hmdp.cache.db-load.max-wait-ms:200}")
+    private long maxWaitMillis;
+
+    private TokenBucket bucket;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder waited = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        bucket = new TokenBucket(permitsPerSecond, burst);
+    }
+
+    /**
+     * 请求线程加载前调用，令牌不足时等待，超时抛出异常
+     * @param permits 本次加载的数据条数
+     */
+    public void acquire(int permits) {
+        if (!enabled) {
+            return;
+        }
+        if (bucket.tryAcquire(permits)) {
+            acquired.add(permits);
+            return;
+        }
+        try {
+            if (bucket.tryAcquire(permits, maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                waited.increment();
+                acquired.add(permits);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.increment();
+        log.warn("数据库加载超过{}次/秒，本次加载被拒绝", permitsPerSecond);
+        throw new RuntimeException("数据库加载限流");
+    }
+
+    /**
+     * 后台重建前调用，不等待
+     * @return 是否可以加载，false 时跳过本次重建
+     */
+    public boolean tryAcquire(int permits) {
+        if (!enabled) {
+            return true;
+        }
+        if (bucket.tryAcquire(permits)) {
+            acquired.add(permits);
+            return true;
+        }
+        skipped.increment();
+        return false;
+    }
+
+    /**
+     * 加载次数、等待次数、被拒绝的请求数、跳过的后台重建数
+     */
+    public Map<String, Object> queryStats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", enabled);
+        map.put("permitsPerSecond", permitsPerSecond);
+        map.put("available", enabled ? bucket.available() : 0);
+        map.put("acquired", acquired.sum());
+        map.put("waited", waited.sum());
+        map.put("rejected", rejected.sum());
+        map.put("skipped", skipped.sum());
+        return map;
+    }
+}
@@ -0,0 +1,210 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 热点key探测：对经过 CacheUtil 读取的key抽样计数（Count-Min Sketch），计数定期减半实现时间衰减
+ * 估计次数超过阈值的key自动提升为热点key，在本节点保存一份短期的副本，不再每次都访问redis
+ * 热度降到阈值一半以下时自动降级，业务代码不需要修改
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    @Value("${hmdp.cache.hot.enabled:true}")
+    private boolean enabled;
+
+    // 抽样比例，每 sample-rate 次读取记录一次
+    @Value("${hmdp.cache.hot.sample-rate:8}")
+    private int sampleRate;
+
+    // 衰减后的访问次数估计超过该值时提升为热点key
+    @Value("${hmdp.cache.hot.threshold:2000}")
+    private int threshold;
+
+    // 计数减半的间隔
+    @Value("${hmdp.cache.hot.decay-ms:1000}")
+    private long decayMillis;
+
+    // 热点key副本的有效期，也是热点key跨节点不一致的最长时间
+    @Value("${hmdp.cache.hot.ttl-ms:1000}")
+    private long ttlMillis;
+
+    // 最多同时存在的热点key数量
+    @Value("${hmdp.cache.hot.max-keys:100}")
+    private int maxHotKeys;
+
+    private static final int DEPTH = 4;
+
+    // 每行的计数器数量，2的幂
+    private static final int WIDTH = 1 << 13;
+
+    private final AtomicIntegerArray counters = new AtomicIntegerArray(DEPTH * WIDTH);
+
+    // 热点key -> 信息
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    // 热点key的本地副本
+    private Cache<String, Object> nearCache;
+
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+    private final LongAdder demotions = new LongAdder();
+
+    private final ScheduledExecutorService decayExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        nearCache = Caffeine.newBuilder()
+                .maximumSize(maxHotKeys)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        if (enabled) {
+            decayExecutor.scheduleAtFixedRate(this::decay, decayMillis, decayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        decayExecutor.shutdownNow();
+    }
+
+    /**
+     * 记录一次读取，抽样计数
+     */
+    public void record(String key) {
+        if (!enabled || ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        sampled.increment();
+        int hash = spread(key.hashCode());
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, counters.addAndGet(index(hash, i), sampleRate));
+        }
+        if (estimate >= threshold && !hotKeys.containsKey(key) && hotKeys.size() < maxHotKeys) {
+            if (hotKeys.putIfAbsent(key, new HotKey()) == null) {
+                promotions.increment();
+                log.info("缓存key {} 成为热点key，访问次数估计{}", key, estimate);
+            }
+        }
+    }
+
+    /**
+     * 热点key的本地副本，不是热点key或副本已过期时返回null
+     */
+    public Object getIfHot(String key) {
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey == null) {
+            return null;
+        }
+        Object value = nearCache.getIfPresent(key);
+        if (value != null) {
+            hotKey.hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * 是热点key时保存本地副本
+     */
+    public void putIfHot(String key, Object value) {
+        if (value != null && hotKeys.containsKey(key)) {
+            nearCache.put(key, value);
+        }
+    }
+
+    public void invalidate(String key) {
+        nearCache.invalidate(key);
+    }
+
+    /**
+     * 热点key报告，按访问次数估计从高到低
+     */
+    public Map<String, Object> report() {
+        List<Map<String, Object>> keys = new ArrayList<>();
+        hotKeys.forEach((key, hotKey) -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", key);
+            item.put("estimate", estimate(key));
+            item.put("nearCacheHits", hotKey.hits.sum());
+            item.put("promotedAt", hotKey.promotedAt);
+            keys.add(item);
+        });
+        keys.sort((a, b) -> Integer.compare((int) b.get("estimate"), (int) a.get("estimate")));
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("threshold", threshold);
+        map.put("sampleRate", sampleRate);
+        map.put("sampled", sampled.sum());
+        map.put("promotions", promotions.sum());
+        map.put("demotions", demotions.sum());
+        map.put("hotKeys", keys);
+        return map;
+    }
+
+    /**
+     * 所有计数减半，热度低于阈值一半的热点key降级
+     */
+    private void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            if (counters.get(i) != 0) {
+                counters.updateAndGet(i, c -> c >> 1);
+            }
+        }
+        hotKeys.forEach((key, hotKey) -> {
+            if (estimate(key) < threshold / 2) {
+                hotKeys.remove(key);
+                nearCache.invalidate(key);
+                demotions.increment();
+                log.info("缓存key {} 不再是热点key", key);
+            }
+        });
+    }
+
+    private int estimate(String key) {
+        int hash = spread(key.hashCode());
+        int estimate = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, counters.get(index(hash, i)));
+        }
+        return estimate;
+    }
+
+    /**
+     * 第 row 行的计数器位置，每行使用不同的哈希
+     */
+    private static int index(int hash, int row) {
+        int h = hash * (0x9E3779B9 + (row << 1));
+        return row * WIDTH + ((h ^ (h >>> 16)) & (WIDTH - 1));
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private static class HotKey {
+        private final long promotedAt = System.currentTimeMillis();
+        private final LongAdder hits = new LongAdder();
+    }
+}
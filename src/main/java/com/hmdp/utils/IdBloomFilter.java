@@ -0,0 +1,279 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 防止缓存穿透的布隆过滤器：启动时分页读取 tb_shop 的id构建，新增数据时更新
+ * 只为经过 CacheUtil 查询的数据建立过滤器，目前只有商铺
+ * 查询时只访问本地堆外内存中的位数组，不存在的id直接返回，不访问redis和数据库
+ * local 模式：每个节点自己从数据库构建
+ * redis 模式：bitmap 保存在redis中（bloom:{name}），节点启动时直接加载，不存在时由数据库构建后合并到redis，定时与redis同步
+ * 两种模式下新增的id都通过发布订阅通知其他节点；发布订阅最多投递一次，
+ * local 模式下另外定时从数据库增量读取新增的id，错过消息的节点不会一直把新数据当作不存在
+ */
+@Slf4j
+@Component
+public class IdBloomFilter {
+
+    public static final String SHOP = "shop";
+
+    private static final String MODE_REDIS = "redis";
+
+    @Value("${hmdp.bloom.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.bloom.mode:local}")
+    private String mode;
+
+    // 每个过滤器预计的元素数量
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    // 误判率
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    // 构建时每次从数据库读取的id数量
+    @Value("${hmdp.bloom.page-size:1000}")
+    private int pageSize;
+
+    // redis 模式下与redis同步的间隔
+    @Value("${hmdp.bloom.sync-interval-seconds:300}")
+    private long syncIntervalSeconds;
+
+    // local 模式下增量读取新增id的间隔
+    @Value("${hmdp.bloom.incremental-interval-seconds:60}")
+    private long incrementalIntervalSeconds;
+
+    @Autowired
+    private ShopMapper shopMapper;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    // 过滤器名 -> 过滤器
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    // 缓存key前缀 -> 过滤器名
+    private final Map<String, String> keyPrefixes = new HashMap<>();
+
+    private final ScheduledExecutorService bloomExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        filters.put(SHOP, new Filter(shopMapper));
+        keyPrefixes.put(RedisConstants.CACHE_SHOP_KEY, SHOP);
+        // 其他节点新增的id，消息格式 name:id
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int index = body.indexOf(':');
+            Filter filter = filters.get(body.substring(0, index));
+            if (filter != null) {
+                filter.bloomFilter.put(Long.parseLong(body.substring(index + 1)));
+            }
+        }, new ChannelTopic(RedisConstants.BLOOM_FILTER_CHANNEL));
+        // 异步构建，构建完成前所有id都视为可能存在
+        bloomExecutor.submit(() -> filters.forEach(this::build));
+        if (MODE_REDIS.equals(mode)) {
+            bloomExecutor.scheduleWithFixedDelay(() -> filters.forEach(this::syncFromRedis),
+                    syncIntervalSeconds, syncIntervalSeconds, TimeUnit.SECONDS);
+        } else {
+            bloomExecutor.scheduleWithFixedDelay(() -> filters.forEach(this::loadNewIds),
+                    incrementalIntervalSeconds, incrementalIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        bloomExecutor.shutdownNow();
+    }
+
+    /**
+     * 根据缓存key前缀判断id是否可能存在，没有对应过滤器或者还没构建完成时返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        String name = keyPrefixes.get(keyPrefix);
+        return name == null || mightContainId(name, id);
+    }
+
+    public boolean mightContainId(String name, Object id) {
+        Filter filter = filters.get(name);
+        if (filter == null || !filter.ready || !(id instanceof Number)) {
+            return true;
+        }
+        return filter.bloomFilter.mightContain(((Number) id).longValue());
+    }
+
+    /**
+     * 新增数据后调用，更新本地过滤器、redis中的bitmap，并通知其他节点
+     */
+    public void add(String name, Long id) {
+        Filter filter = filters.get(name);
+        if (filter == null || id == null) {
+            return;
+        }
+        long[] offsets = filter.bloomFilter.put(id);
+        if (MODE_REDIS.equals(mode)) {
+            byte[] key = bitmapKey(name);
+            redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (long offset : offsets) {
+                    connection.setBit(key, offset, true);
+                }
+                return null;
+            });
+        }
+        redisTemplate.convertAndSend(RedisConstants.BLOOM_FILTER_CHANNEL, name + ":" + id);
+    }
+
+    private void build(String name, Filter filter) {
+        try {
+            if (MODE_REDIS.equals(mode) && syncFromRedis(name, filter)) {
+                filter.ready = true;
+                log.info("布隆过滤器{}从redis加载完成", name);
+                return;
+            }
+            // 按id分页读取，避免一次加载整张表
+            long lastId = 0;
+            long count = 0;
+            while (true) {
+                List<Object> ids = selectIds(filter.mapper, lastId);
+                for (Object id : ids) {
+                    lastId = ((Number) id).longValue();
+                    filter.bloomFilter.put(lastId);
+                }
+                count += ids.size();
+                if (ids.size() < pageSize) {
+                    break;
+                }
+            }
+            if (MODE_REDIS.equals(mode)) {
+                uploadToRedis(name, filter);
+            }
+            filter.maxId = lastId;
+            filter.scanFrom = lastId;
+            filter.ready = true;
+            log.info("布隆过滤器{}构建完成，共{}个id，{}位，{}个哈希函数",
+                    name, count, filter.bloomFilter.getNumBits(), filter.bloomFilter.getNumHashes());
+        } catch (Exception e) {
+            // 构建失败时过滤器不生效，不影响正常查询
+            log.error("布隆过滤器{}构建失败", name, e);
+        }
+    }
+
+    /**
+     * 增量读取新增的id：从上一次读取开始时的最大id开始，每段id会被读取两次，
+     * 自增id分配后晚一些才提交的数据在下一次读取时补上
+     */
+    private void loadNewIds(String name, Filter filter) {
+        if (!filter.ready) {
+            return;
+        }
+        try {
+            long lastId = filter.scanFrom;
+            long maxId = filter.maxId;
+            long count = 0;
+            while (true) {
+                List<Object> ids = selectIds(filter.mapper, lastId);
+                for (Object id : ids) {
+                    lastId = ((Number) id).longValue();
+                    filter.bloomFilter.put(lastId);
+                }
+                count += ids.size();
+                if (ids.size() < pageSize) {
+                    break;
+                }
+            }
+            filter.scanFrom = maxId;
+            filter.maxId = Math.max(maxId, lastId);
+            if (count > 0) {
+                log.debug("布隆过滤器{}增量读取{}个id", name, count);
+            }
+        } catch (Exception e) {
+            log.error("布隆过滤器{}增量读取失败", name, e);
+        }
+    }
+
+    private <T> List<Object> selectIds(BaseMapper<T> mapper, long lastId) {
+        QueryWrapper<T> wrapper = new QueryWrapper<>();
+        wrapper.select("id").gt("id", lastId).orderByAsc("id").last("limit " + pageSize);
+        return mapper.selectObjs(wrapper);
+    }
+
+    /**
+     * 把redis中的bitmap合并到本地
+     * @return redis中是否存在大小一致的bitmap
+     */
+    private boolean syncFromRedis(String name, Filter filter) {
+        try {
+            byte[] bitmap = redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(bitmapKey(name)));
+            if (bitmap == null || bitmap.length != filter.bloomFilter.getNumBits() / 8) {
+                return false;
+            }
+            filter.bloomFilter.merge(bitmap);
+            return true;
+        } catch (Exception e) {
+            log.error("布隆过滤器{}同步失败", name, e);
+            return false;
+        }
+    }
+
+    /**
+     * 先写入临时key，再用 BITOP OR 合并，不会覆盖其他节点同时写入的位
+     */
+    private void uploadToRedis(String name, Filter filter) {
+        byte[] key = bitmapKey(name);
+        byte[] tempKey = (RedisConstants.BLOOM_FILTER_KEY + name + ":tmp").getBytes(StandardCharsets.UTF_8);
+        byte[] bitmap = filter.bloomFilter.toByteArray();
+        redisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.set(tempKey, bitmap);
+            connection.bitOp(RedisStringCommands.BitOperation.OR, key, key, tempKey);
+            connection.del(tempKey);
+            return null;
+        });
+    }
+
+    private static byte[] bitmapKey(String name) {
+        return (RedisConstants.BLOOM_FILTER_KEY + name).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private class Filter {
+        private final BloomFilter bloomFilter = new BloomFilter(expectedInsertions, fpp);
+        private final BaseMapper<?> mapper;
+        private volatile boolean ready;
+        // 已经读取到的最大id，以及下一次增量读取的起点，只在 bloomExecutor 中访问
+        private long maxId;
+        private long scanFrom;
+
+        private Filter(BaseMapper<?> mapper) {
+            this.mapper = mapper;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSON;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * 原来的 hutool json 格式：普通缓存直接保存对象json，逻辑过期的缓存保存 RedisData 的json
+ * 版本号只能保存在 RedisData 中，普通缓存不带版本号
+ * 用于读取旧数据，也可以通过 hmdp.cache.codec=json 继续用它写入
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return true;
+    }
+
+    @Override
+    public byte[] encode(Object value, long expireAt, long version, int deltaMillis) {
+        if (expireAt == NO_EXPIRE) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+        if (version != NO_VERSION) {
+            redisData.setVersion(version);
+        }
+        if (deltaMillis > 0) {
+            redisData.setDelta(deltaMillis);
+        }
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long readExpireAt(byte[] bytes) {
+        JSON json = JSONUtil.parse(new String(bytes, StandardCharsets.UTF_8));
+        if (!isRedisData(json)) {
+            return NO_EXPIRE;
+        }
+        LocalDateTime expireTime = json.toBean(RedisData.class).getExpireTime();
+        return expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public long readVersion(byte[] bytes) {
+        JSON json = JSONUtil.parse(new String(bytes, StandardCharsets.UTF_8));
+        if (!isRedisData(json)) {
+            return NO_VERSION;
+        }
+        Long version = ((JSONObject) json).getLong("version");
+        return version == null ? NO_VERSION : version;
+    }
+
+    @Override
+    public int readDelta(byte[] bytes) {
+        JSON json = JSONUtil.parse(new String(bytes, StandardCharsets.UTF_8));
+        if (!isRedisData(json)) {
+            return 0;
+        }
+        Integer delta = ((JSONObject) json).getInt("delta");
+        return delta == null ? 0 : delta;
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        // 可能是对象，也可能是数组（例如分页缓存的id列表）
+        JSON json = JSONUtil.parse(new String(bytes, StandardCharsets.UTF_8));
+        if (isRedisData(json)) {
+            return JSONUtil.toBean(((JSONObject) json).getJSONObject("data"), type);
+        }
+        return json.toBean(type);
+    }
+
+    private static boolean isRedisData(JSON json) {
+        return json instanceof JSONObject
+                && ((JSONObject) json).containsKey("expireTime") && ((JSONObject) json).containsKey("data");
+    }
+}
@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 接口限流，由 RateLimitInterceptor 处理
+ * 每个 (规则, 用户或ip) 一个令牌桶，先经过本节点的令牌桶，通过后再由redis中的令牌桶判断
+ * 速率和容量可以在配置中覆盖：hmdp.rate-limit.rules.{name}.permits-per-second / burst
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RateLimit {
+
+    /**
+     * 规则名，同时是redis key和配置的一部分
+     */
+    String name();
+
+    /**
+     * 按什么限流
+     */
+    KeyType key() default KeyType.USER_OR_IP;
+
+    /**
+     * 每秒允许的请求数
+     */
+    double permitsPerSecond() default 10;
+
+    /**
+     * 允许的突发数量
+     */
+    int burst() default 20;
+
+    enum KeyType {
+        // 所有请求共用一个令牌桶
+        GLOBAL,
+        // 按客户端ip
+        IP,
+        // 按登录用户，没有登录时按ip
+        USER_OR_IP
+    }
+}
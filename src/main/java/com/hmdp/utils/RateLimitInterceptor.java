@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 处理接口上的 @RateLimit 注解，被限流时返回429
+ */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private RequestRateLimiter rateLimiter;
+
+    private final Set<String> trustedProxies;
+
+    /**
+     * @param trustedProxies 可信的反向代理ip，逗号分隔；只有直接连接来自这些ip时才使用 X-Real-IP
+     */
+    public RateLimitInterceptor(RequestRateLimiter rateLimiter, String trustedProxies) {
+        this.rateLimiter = rateLimiter;
+        this.trustedProxies = new HashSet<>(StrUtil.split(trustedProxies, ',', true, true));
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        RateLimit limit = ((HandlerMethod) handler).getMethodAnnotation(RateLimit.class);
+        if (limit == null || rateLimiter.tryAcquire(limit, resolveKey(limit.key(), request))) {
+            return true;
+        }
+        response.setStatus(429);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("请求过于频繁，请稍后再试")));
+        return false;
+    }
+
+    private String resolveKey(RateLimit.KeyType keyType, HttpServletRequest request) {
+        if (keyType == RateLimit.KeyType.GLOBAL) {
+            return "";
+        }
+        if (keyType == RateLimit.KeyType.USER_OR_IP) {
+            UserDTO user = UserHolder.getUser();
+            if (user != null) {
+                return "user:" + user.getId();
+            }
+        }
+        // 客户端可以伪造 X-Real-IP 绕过限流，只信任经过配置的代理（nginx）转发的请求
+        String remoteAddr = request.getRemoteAddr();
+        String ip = trustedProxies.contains(remoteAddr) ? request.getHeader("X-Real-IP") : null;
+        return "ip:" + (StrUtil.isNotBlank(ip) ? ip : remoteAddr);
+    }
+}
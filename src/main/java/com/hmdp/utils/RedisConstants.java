@@ -5,19 +5,39 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 30L;
+    public static final String LOGIN_INVALIDATE_CHANNEL = "login:invalidate";
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKE_CHANNEL = "login:revoke";
+    public static final String RATE_LIMIT_KEY = "rate:limit:";
 
     public static final Long CACHE_NULL_TTL = 2L;
 
-    public static final Long CACHE_SHOP_TTL = 30L;
+    public static final Long CACHE_SHOP_TTL = 1800L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_SHOP_TYPE_PAGE_KEY = "cache:shopPage:type:";
+    public static final String CACHE_SHOP_NAME_PAGE_KEY = "cache:shopPage:name:";
+    public static final Long CACHE_SHOP_PAGE_TTL = 10L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_FILTER_KEY = "bloom:";
+    public static final String BLOOM_FILTER_CHANNEL = "bloom:add";
 
     public static final String CACHE_SHOPTYPE_KEY = "cache:shopType:List";
     public static final Long CACHE_SHOPTYPE_TTL = 30L;
+    public static final String CACHE_SHOPTYPE_VERSION_KEY = "cache:shopType:version";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_STOCK_SHARDS_KEY = "seckill:stock:shards:";
+    public static final String SECKILL_STOCK_LEFT_KEY = "seckill:stock:left:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_SHARD_STREAMS_KEY = "seckill:streams";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
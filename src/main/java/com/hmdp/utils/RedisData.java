@@ -8,4 +8,8 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    // 数据版本号（更新时间的毫秒数），写入时不覆盖更高的版本
+    private Long version;
+    // 重建耗时（毫秒），提前刷新模式使用
+    private Integer delta;
 }
@@ -1,27 +1,25 @@
 package com.hmdp.utils;
 
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.UserDTO;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.util.StringUtils;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
-import java.util.Objects;
-import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class RefreshTokenInterceptor implements HandlerInterceptor {
 
-    private StringRedisTemplate redisTemplate;
+    private TokenSessionCache tokenSessionCache;
+
+    private SignedTokenSessions signedTokenSessions;
 
     //因为这个类不是有spring容器管理的，所以不能使用自动注入注解，可以通过构造函数注入进来
-    public RefreshTokenInterceptor(StringRedisTemplate redisTemplate) {
-        this.redisTemplate = redisTemplate;
+    public RefreshTokenInterceptor(TokenSessionCache tokenSessionCache, SignedTokenSessions signedTokenSessions) {
+        this.tokenSessionCache = tokenSessionCache;
+        this.signedTokenSessions = signedTokenSessions;
     }
 
     /**
@@ -40,20 +38,31 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         if(StringUtils.isEmpty(token)){
            return true;
         }
-        Map<Object, Object> userMap = redisTemplate.opsForHash().entries(RedisConstants.LOGIN_USER_KEY+token);
+        UserDTO userDTO;
+        if (SignedTokenSessions.isSignedToken(token)) {
+            // 签名token：只校验签名和吊销集合，不访问redis；快过期时在响应头中返回新的token
+            SignedTokenSessions.Claims claims = signedTokenSessions.verify(token);
+            if (claims == null) {
+                return true;
+            }
+            String renewed = signedTokenSessions.renewIfNeeded(claims);
+            if (renewed != null) {
+                response.setHeader("authorization", renewed);
+                response.addHeader("Access-Control-Expose-Headers", "authorization");
+            }
+            userDTO = claims.getUser();
+        } else {
+            // redis会话：先查本地缓存，未命中时从redis读取；需要续期时由后台批量刷新token有效期
+            userDTO = tokenSessionCache.get(token);
+        }
         // 3: 判断用户是否存在
-        if(userMap.isEmpty()){
+        if(userDTO == null){
             return true;
         }
 
-        // 将map转换为用户
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
-
         // 5: 保存用户到ThreadLocal
         UserHolder.saveUser(userDTO);
 
-        // 刷新token有效期
-        redisTemplate.expire(RedisConstants.LOGIN_USER_KEY+token,RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
         // 6: 放行
         return true;
     }
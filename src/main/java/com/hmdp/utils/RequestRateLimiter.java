@@ -0,0 +1,143 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 接口限流
+ * 先经过本节点的令牌桶（与全局使用相同的速率，单个节点就超过全局速率的请求在本地拒绝，不访问redis），
+ * 再由 rate_limit.lua 在redis中的令牌桶判断，所有节点共享
+ * redis异常时按配置放行或拒绝
+ */
+@Slf4j
+@Component
+public class RequestRateLimiter {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    @Value("${hmdp.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    // 是否先经过本节点的令牌桶
+    @Value("${hmdp.rate-limit.local-enabled:true}")
+    private boolean localEnabled;
+
+    // redis异常时是否放行
+    @Value("${hmdp.rate-limit.fail-open:true}")
+    private boolean failOpen;
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final Environment environment;
+
+    // 规则名:用户或ip -> 本节点的令牌桶，一段时间没有请求后删除
+    private final Cache<String, TokenBucket> localBuckets = Caffeine.newBuilder()
+            .maximumSize(100000)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+    // 规则名 -> 速率和容量（注解的默认值被配置覆盖后）
+    private final Map<String, double[]> rules = new ConcurrentHashMap<>();
+
+    // 规则名 -> 统计
+    private final Map<String, RuleStats> ruleStats = new ConcurrentHashMap<>();
+
+    public RequestRateLimiter(StringRedisTemplate redisTemplate, Environment environment) {
+        this.redisTemplate = redisTemplate;
+        this.environment = environment;
+    }
+
+    /**
+     * @param limit 接口上的限流注解
+     * @param key 用户id或ip，GLOBAL 时为空字符串
+     * @return 是否放行
+     */
+    public boolean tryAcquire(RateLimit limit, String key) {
+        if (!enabled) {
+            return true;
+        }
+        double[] rule = rules.computeIfAbsent(limit.name(), name -> new double[]{
+                environment.getProperty("hmdp.rate-limit.rules." + name + ".permits-per-second", Double.class, limit.permitsPerSecond()),
+                environment.getProperty("hmdp.rate-limit.rules." + name + ".burst", Double.class, (double) limit.burst())
+        });
+        RuleStats stats = ruleStats.computeIfAbsent(limit.name(), name -> new RuleStats());
+        String bucketKey = limit.name() + ":" + key;
+        // 1: 本节点的令牌桶
+        if (localEnabled) {
+            TokenBucket bucket = localBuckets.get(bucketKey, k -> new TokenBucket(rule[0], rule[1]));
+            if (!bucket.tryAcquire(1)) {
+                stats.localRejected.increment();
+                return false;
+            }
+        }
+        // 2: redis中的令牌桶
+        try {
+            Long result = redisTemplate.execute(RATE_LIMIT_SCRIPT,
+                    Collections.singletonList(RedisConstants.RATE_LIMIT_KEY + bucketKey),
+                    String.valueOf(rule[0]), String.valueOf(rule[1]), "1");
+            if (Long.valueOf(1).equals(result)) {
+                stats.accepted.increment();
+                return true;
+            }
+            stats.redisRejected.increment();
+            return false;
+        } catch (Exception e) {
+            stats.errors.increment();
+            log.warn("限流规则{}访问redis失败，{}", limit.name(), failOpen ? "放行" : "拒绝", e);
+            return failOpen;
+        }
+    }
+
+    /**
+     * 每个规则的放行、本地拒绝、redis拒绝、redis异常次数
+     */
+    public Map<String, Map<String, Object>> queryStats() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        ruleStats.forEach((name, stats) -> {
+            long accepted = stats.accepted.sum();
+            long localRejected = stats.localRejected.sum();
+            long redisRejected = stats.redisRejected.sum();
+            long total = accepted + localRejected + redisRejected;
+            Map<String, Object> map = new LinkedHashMap<>();
+            double[] rule = rules.get(name);
+            map.put("permitsPerSecond", rule == null ? null : rule[0]);
+            map.put("burst", rule == null ? null : rule[1]);
+            map.put("accepted", accepted);
+            map.put("localRejected", localRejected);
+            map.put("redisRejected", redisRejected);
+            map.put("errors", stats.errors.sum());
+            // 被拒绝的请求中不访问redis的比例
+            map.put("localRejectRatio", localRejected + redisRejected == 0 ? 0 : (double) localRejected / (localRejected + redisRejected));
+            map.put("rejectRatio", total == 0 ? 0 : (double) (localRejected + redisRejected) / total);
+            result.put(name, map);
+        });
+        return result;
+    }
+
+    private static class RuleStats {
+        private final LongAdder accepted = new LongAdder();
+        private final LongAdder localRejected = new LongAdder();
+        private final LongAdder redisRejected = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+    }
+}
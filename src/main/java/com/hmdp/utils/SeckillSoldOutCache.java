@@ -0,0 +1,55 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地售罄标记：优惠券售罄后，后续请求直接在本地拒绝，不再访问redis
+ * 秒杀库存不会补货，售罄标记一旦设置就不会失效；通过redis发布订阅同步到其他节点
+ */
+@Component
+@Slf4j
+public class SeckillSoldOutCache {
+
+    private final Set<Long> soldOutVouchers = ConcurrentHashMap.newKeySet();
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    public SeckillSoldOutCache(StringRedisTemplate redisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 订阅其他节点的售罄通知
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String voucherId = new String(message.getBody(), StandardCharsets.UTF_8);
+            soldOutVouchers.add(Long.valueOf(voucherId));
+            log.debug("收到优惠券{}售罄通知", voucherId);
+        }, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOutVouchers.contains(voucherId);
+    }
+
+    /**
+     * 标记售罄，本节点第一次标记时通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOutVouchers.add(voucherId)) {
+            redisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.hmdp.utils;
+
+/**
+ * 秒杀库存分片：把一个优惠券的库存拆到多个key上，避免所有请求都落到同一个redis节点
+ * 每个分片的库存key、下单用户key、售卖时间key和订单stream使用同一个hash tag {voucherId:shard}，
+ * 保证脚本访问的key在集群中落在同一个slot，不同分片的hash tag不同，会分散到不同的节点
+ */
+public class SeckillStockShards {
+
+    /**
+     * 分片库存key，例如 seckill:stock:{10:3}
+     */
+    public static String stockKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 分片下单用户key，例如 seckill:order:{10:3}
+     */
+    public static String orderKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 分片售卖时间key，例如 seckill:voucher:{10:3}，与分片库存在同一个slot，脚本中一起访问
+     */
+    public static String voucherKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_VOUCHER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 分片订单stream，例如 stream.orders:{10:3}，脚本在扣减分片库存的同时写入
+     */
+    public static String streamKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_ORDER_STREAM + ":{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 分片的剩余库存key，例如 seckill:stock:left:{10:3}，结束秒杀时与分片库存在同一个脚本中访问
+     */
+    public static String leftKey(Long voucherId, int shard) {
+        return RedisConstants.SECKILL_STOCK_LEFT_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 不分片时的剩余库存key：hash tag 为整个库存key seckill:stock:{id}，与没有hash tag的库存key在同一个slot
+     */
+    public static String leftKey(Long voucherId) {
+        return RedisConstants.SECKILL_STOCK_LEFT_KEY + "{" + RedisConstants.SECKILL_STOCK_KEY + voucherId + "}";
+    }
+
+    /**
+     * 用户的主分片，同一个用户总是从主分片开始依次尝试，保证一人一单的判断是确定的
+     */
+    public static int homeShard(Long userId, int shards) {
+        return Math.floorMod(Long.hashCode(userId), shards);
+    }
+
+    /**
+     * 把库存平均拆分到各个分片，余数分给前面的分片
+     */
+    public static int[] split(int stock, int shards) {
+        int[] parts = new int[shards];
+        for (int i = 0; i < shards; i++) {
+            parts[i] = stock / shards + (i < stock % shards ? 1 : 0);
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,153 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.mapper.SeckillVoucherMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀券的售卖时间
+ * 创建秒杀券时写入redis hash seckill:voucher:{id}（begin、end，毫秒时间戳），秒杀脚本用redis的时间判断，结果以脚本为准；
+ * 分片库存的每个分片另外保存一份 seckill:voucher:{id:shard}，与分片库存在同一个slot
+ * 本地缓存一份，明显不在售卖时间内的请求直接拒绝，不访问redis和数据库；
+ * 边界附近（节点时钟可能有偏差）的请求仍然交给脚本判断
+ */
+@Slf4j
+@Component
+public class SeckillVoucherWindowCache {
+
+    /**
+     * 在售卖时间内（或交给脚本判断）
+     */
+    public static final int OPEN = 0;
+
+    /**
+     * 还没有开始，与脚本的返回值相同
+     */
+    public static final int NOT_STARTED = 3;
+
+    /**
+     * 已经结束，与脚本的返回值相同
+     */
+    public static final int ENDED = 4;
+
+    // 没有售卖时间（不是秒杀券），交给脚本判断
+    private static final long[] NO_WINDOW = new long[0];
+
+    // 本地判断时允许的时钟偏差
+    @Value("${hmdp.seckill.window.clock-skew-ms:1000}")
+    private long clockSkewMillis;
+
+    // 本地缓存的有效期
+    @Value("${hmdp.seckill.window.cache-seconds:300}")
+    private long cacheSeconds;
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    @Autowired
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    // 优惠券id -> {开始时间, 结束时间}
+    private Cache<Long, long[]> windows;
+
+    @PostConstruct
+    private void init() {
+        windows = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(cacheSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * 本地判断是否在售卖时间内
+     * @return OPEN、NOT_STARTED 或 ENDED
+     */
+    public int check(Long voucherId) {
+        long[] window = windows.get(voucherId, this::load);
+        if (window == null || window.length == 0) {
+            return OPEN;
+        }
+        long now = System.currentTimeMillis();
+        if (now < window[0] - clockSkewMillis) {
+            return NOT_STARTED;
+        }
+        if (now > window[1] + clockSkewMillis) {
+            return ENDED;
+        }
+        return OPEN;
+    }
+
+    /**
+     * 把售卖时间写入redis，创建秒杀券时在写入库存之前调用
+     * @param shards 库存分片数，大于1时每个分片另外写一份
+     */
+    public void publish(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime, int shards) {
+        if (beginTime == null || endTime == null) {
+            windows.put(voucherId, NO_WINDOW);
+            return;
+        }
+        windows.put(voucherId, write(voucherId, beginTime, endTime, shards));
+    }
+
+    private long[] write(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime, int shards) {
+        long begin = toMillis(beginTime);
+        long end = toMillis(endTime);
+        List<String> keys = new ArrayList<>();
+        keys.add(RedisConstants.SECKILL_VOUCHER_KEY + voucherId);
+        for (int i = 0; shards > 1 && i < shards; i++) {
+            keys.add(SeckillStockShards.voucherKey(voucherId, i));
+        }
+        Map<byte[], byte[]> fields = new HashMap<>(4);
+        fields.put("begin".getBytes(StandardCharsets.UTF_8), String.valueOf(begin).getBytes(StandardCharsets.UTF_8));
+        fields.put("end".getBytes(StandardCharsets.UTF_8), String.valueOf(end).getBytes(StandardCharsets.UTF_8));
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.hMSet(key.getBytes(StandardCharsets.UTF_8), fields);
+            }
+            return null;
+        });
+        return new long[]{begin, end};
+    }
+
+    /**
+     * 本地缓存未命中时从redis读取；redis中没有时（上线前创建的秒杀券）从数据库读取并写入redis
+     */
+    private long[] load(Long voucherId) {
+        List<Object> values = redisTemplate.opsForHash()
+                .multiGet(RedisConstants.SECKILL_VOUCHER_KEY + voucherId, Arrays.asList("begin", "end"));
+        if (values.get(0) != null && values.get(1) != null) {
+            return new long[]{Long.parseLong(values.get(0).toString()), Long.parseLong(values.get(1).toString())};
+        }
+        SeckillVoucher seckillVoucher = seckillVoucherMapper.selectById(voucherId);
+        if (seckillVoucher == null || seckillVoucher.getBeginTime() == null || seckillVoucher.getEndTime() == null) {
+            return NO_WINDOW;
+        }
+        String shards = redisTemplate.opsForValue().get(RedisConstants.SECKILL_STOCK_SHARDS_KEY + voucherId);
+        long[] window = write(voucherId, seckillVoucher.getBeginTime(), seckillVoucher.getEndTime(),
+                shards == null ? 1 : Integer.parseInt(shards));
+        log.info("秒杀券{}的售卖时间已写入redis", voucherId);
+        return window;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 生成订单唯一id
+ * 号段模式（默认）：每次用 INCRBY 从redis预留一段序列号，在本地用 AtomicLong 依次发放，
+ * 剩余数量低于水位时异步预取下一段，redis调用次数约为原来的 1/步长
+ */
+
+@Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "segment", matchIfMissing = true)
+public class SegmentRedisWorker implements RedisWorker {
+
+    @Autowired
+    private StringRedisTemplate redisTemplate;
+
+    /**
+     * 开始时间戳
+     * @param keyPrefix
+     * @return
+     */
+    private static final long BEGIN_TIMESTAMP = 1672531200L;
+
+    /**
+     * 记录序列号位数
+     * @param keyPrefix
+     * @return
+     */
+
+    private static final int COUNT_BITS = 32;
+
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    // 日期格式只创建一次
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    // 异步预取号段的线程池
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    // 每次从redis预留的序列号数量
+    @Value("${hmdp.id.segment-step:1000}")
+    private int segmentStep;
+
+    // 号段剩余比例低于该值时预取下一段
+    @Value("${hmdp.id.segment-low-water:0.2}")
+    private double segmentLowWater;
+
+    // 业务前缀 -> 号段
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
+    @Override
+    public long nextId(String keyPrefix){
+        // 1: 生成时间戳
+        long nowSeconds = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+        long timestamp = nowSeconds - BEGIN_TIMESTAMP;
+
+        // 2:生成序列号，序列号按天重置，从当天的号段中取
+        long count = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new)
+                .next(nowSeconds / SECONDS_PER_DAY);
+        // 3:拼接并返回
+        return timestamp << COUNT_BITS | count;
+
+    }
+
+    /**
+     * 号段 [cursor, max]，属于某一天
+     */
+    private static class Segment {
+        private final long day;
+        private final AtomicLong cursor;
+        private final long max;
+
+        private Segment(long day, long min, long max) {
+            this.day = day;
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+        }
+    }
+
+    /**
+     * 一个业务前缀的双号段缓冲：当前号段 + 预取的下一段
+     */
+    private class SegmentBuffer {
+
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean prefetching = new AtomicBoolean(false);
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(long day) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.day == day) {
+                    // 无锁发号
+                    long count = segment.cursor.getAndIncrement();
+                    if (count <= segment.max) {
+                        // 每个号只会发一次，剩余数量刚好等于水位时触发一次预取
+                        if (segment.max - count == lowWaterMark()) {
+                            prefetch(segment);
+                        }
+                        return count;
+                    }
+                }
+                // 号段用完或者跨天，切换号段
+                switchSegment(segment, day);
+            }
+        }
+
+        private synchronized void switchSegment(Segment old, long day) {
+            if (current != old) {
+                // 其他线程已经切换
+                return;
+            }
+            Segment segment = next;
+            next = null;
+            if (segment == null || segment.day != day) {
+                // 预取还没完成或者已经跨天，同步加载
+                segment = load(day);
+            }
+            current = segment;
+        }
+
+        private void prefetch(Segment segment) {
+            if (!prefetching.compareAndSet(false, true)) {
+                return;
+            }
+            SEGMENT_PREFETCH_EXECUTOR.submit(() -> {
+                try {
+                    Segment loaded = load(segment.day);
+                    synchronized (this) {
+                        // 预取期间已经切换过号段，丢弃这一段，只会在序列号中留下空洞
+                        if (current == segment && next == null) {
+                            next = loaded;
+                        }
+                    }
+                } finally {
+                    prefetching.set(false);
+                }
+            });
+        }
+
+        private Segment load(long day) {
+            String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+            long max = redisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentStep);
+            return new Segment(day, max - segmentStep + 1, max);
+        }
+
+        private long lowWaterMark() {
+            return Math.max(1, (long) (segmentStep * segmentLowWater));
+        }
+    }
+
+    public static void main(String[] args) {
+        LocalDateTime time = LocalDateTime.of(2023, 1, 1, 0, 0, 0);
+        long seconds = time.toEpochSecond(ZoneOffset.UTC);
+        LocalDateTime nowTime = LocalDateTime.now();
+        System.out.println( nowTime.format(DateTimeFormatter.ofPattern("yyyyMMdd")));
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * 登录会话的紧凑格式
+ * redis中的值：[1字节版本][8字节用户id][昵称][头像]，字符串为 2字节长度 + UTF-8
+ * token：16字节随机数的base64url，22个字符；原来的32位uuid token对应的值仍然是hash
+ */
+public final class SessionCodec {
+
+    private static final byte VERSION = 1;
+
+    private static final int TOKEN_BYTES = 16;
+
+    /**
+     * 原来的token：不带横线的uuid
+     */
+    private static final int LEGACY_TOKEN_LENGTH = 32;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private SessionCodec() {
+    }
+
+    /**
+     * 生成新的token
+     */
+    public static String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * 是否为原来的uuid token，它的会话保存在redis hash中
+     */
+    public static boolean isLegacyToken(String token) {
+        return token.length() == LEGACY_TOKEN_LENGTH;
+    }
+
+    public static byte[] encode(UserDTO user) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            write(out, user);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static UserDTO decode(byte[] value) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+            if (in.readByte() != VERSION) {
+                throw new IllegalArgumentException("不支持的会话格式");
+            }
+            return read(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 只写入用户字段，签名token的载荷也使用这个格式
+     */
+    static void write(DataOutput out, UserDTO user) throws IOException {
+        out.writeLong(user.getId());
+        out.writeUTF(StrUtil.nullToEmpty(user.getNickName()));
+        out.writeUTF(StrUtil.nullToEmpty(user.getIcon()));
+    }
+
+    static UserDTO read(DataInput in) throws IOException {
+        UserDTO user = new UserDTO();
+        user.setId(in.readLong());
+        user.setNickName(in.readUTF());
+        user.setIcon(in.readUTF());
+        return user;
+    }
+}
@@ -0,0 +1,99 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 估算登录会话占用的redis内存
+ * 用 SCAN 抽样一部分key，按其中会话key的比例和 DBSIZE 估算会话数量，
+ * 对抽到的会话key用 MEMORY USAGE（一次pipeline）取平均大小，原来的hash格式和紧凑格式分别统计
+ */
+@Component
+public class SessionMemorySampler {
+
+    private static final byte[] USAGE = "USAGE".getBytes(StandardCharsets.UTF_8);
+
+    // 最多抽样的key数量，抽到的会话key都要执行 MEMORY USAGE，过大时会长时间占用redis
+    private static final int MAX_SAMPLE_SIZE = 100000;
+
+    private final StringRedisTemplate redisTemplate;
+
+    public SessionMemorySampler(StringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    /**
+     * @param sampleSize 最多抽样的key数量，限制在 1 ~ MAX_SAMPLE_SIZE
+     * @return 会话数量、平均大小和总大小的估计
+     */
+    public Map<String, Object> sample(int sampleSize) {
+        int limit = Math.max(1, Math.min(sampleSize, MAX_SAMPLE_SIZE));
+        Long dbSize = redisTemplate.execute(RedisConnection::dbSize);
+        // 在同一个连接上完成扫描
+        int[] scanned = {0};
+        List<byte[]> sessionKeys = redisTemplate.execute((RedisCallback<List<byte[]>>) connection -> {
+            List<byte[]> keys = new ArrayList<>();
+            try (Cursor<byte[]> cursor = connection.scan(ScanOptions.scanOptions().count(Math.min(limit, 1000)).build())) {
+                while (cursor.hasNext() && scanned[0] < limit) {
+                    byte[] key = cursor.next();
+                    scanned[0]++;
+                    if (new String(key, StandardCharsets.UTF_8).startsWith(RedisConstants.LOGIN_USER_KEY)) {
+                        keys.add(key);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return keys;
+        });
+        List<byte[]> sampledKeys = sessionKeys == null ? new ArrayList<>() : sessionKeys;
+        List<Object> usages = sampledKeys.isEmpty() ? new ArrayList<>()
+                : redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (byte[] key : sampledKeys) {
+                        connection.execute("MEMORY", USAGE, key);
+                    }
+                    return null;
+                });
+        long legacyCount = 0, legacyBytes = 0, compactCount = 0, compactBytes = 0;
+        for (int i = 0; i < sampledKeys.size(); i++) {
+            Object usage = usages.get(i);
+            long bytes = usage instanceof Number ? ((Number) usage).longValue() : 0;
+            String token = new String(sampledKeys.get(i), StandardCharsets.UTF_8).substring(RedisConstants.LOGIN_USER_KEY.length());
+            if (SessionCodec.isLegacyToken(token)) {
+                legacyCount++;
+                legacyBytes += bytes;
+            } else {
+                compactCount++;
+                compactBytes += bytes;
+            }
+        }
+        long total = dbSize == null ? 0 : dbSize;
+        double ratio = scanned[0] == 0 ? 0 : (double) sampledKeys.size() / scanned[0];
+        long estimatedSessions = Math.round(total * ratio);
+        double avgBytes = sampledKeys.isEmpty() ? 0 : (double) (legacyBytes + compactBytes) / sampledKeys.size();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("dbSize", total);
+        map.put("scannedKeys", scanned[0]);
+        map.put("sampledSessions", sampledKeys.size());
+        map.put("estimatedSessions", estimatedSessions);
+        map.put("avgBytes", avgBytes);
+        map.put("estimatedBytes", Math.round(estimatedSessions * avgBytes));
+        map.put("legacySessions", legacyCount);
+        map.put("legacyAvgBytes", legacyCount == 0 ? 0 : (double) legacyBytes / legacyCount);
+        map.put("compactSessions", compactCount);
+        map.put("compactAvgBytes", compactCount == 0 ? 0 : (double) compactBytes / compactCount);
+        return map;
+    }
+}
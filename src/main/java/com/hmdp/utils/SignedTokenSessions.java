@@ -0,0 +1,303 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无状态的签名token：token中保存用户信息和过期时间，用HMAC签名，校验时不访问redis
+ * 格式：base64url(载荷).base64url(HMAC-SHA256前16字节)
+ * 载荷：[1字节版本][8字节会话id][8字节过期时间][用户字段，同 SessionCodec]
+ * 续期时签发同一会话id的新token；登出时把会话id写入redis的吊销集合（ZSET，分数为过期时间），
+ * 每个节点在本地保存一份吊销集合，通过发布订阅和定期同步保持一致
+ */
+@Slf4j
+@Component
+public class SignedTokenSessions {
+
+    private static final byte VERSION = 1;
+
+    private static final int SIGNATURE_LENGTH = 16;
+
+    // HMAC-SHA256 密钥的最小字节数
+    private static final int MIN_SECRET_LENGTH = 32;
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    @Value("${hmdp.session.mode:redis}")
+    private String mode;
+
+    // 签名密钥，多个节点必须相同
+    @Value("${hmdp.session.secret:}")
+    private String secret;
+
+    // 剩余有效期低于该值时在响应头中返回新的token
+    @Value("${hmdp.session.refresh-below-minutes:25}")
+    private long renewBelowMinutes;
+
+    // 与redis同步吊销集合的间隔
+    @Value("${hmdp.session.revoke-sync-seconds:60}")
+    private long syncSeconds;
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private SecretKeySpec key;
+
+    private ThreadLocal<Mac> macs;
+
+    // 本地的吊销集合：会话id -> 过期时间
+    private final Map<Long, Long> revoked = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService syncExecutor = Executors.newSingleThreadScheduledExecutor(
+            r -> new Thread(r, "session-revoke-sync"));
+
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder renewed = new LongAdder();
+    private final LongAdder revokedHits = new LongAdder();
+
+    public SignedTokenSessions(StringRedisTemplate redisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        byte[] secretBytes = StrUtil.isBlank(secret) ? new byte[0] : secret.getBytes(StandardCharsets.UTF_8);
+        if ("signed".equals(mode)) {
+            // signed模式下密钥为空或太短时拒绝启动，不能用随机密钥：各节点签发的token互相校验不通过，重启后全部失效
+            if (secretBytes.length < MIN_SECRET_LENGTH) {
+                throw new IllegalStateException("hmdp.session.mode=signed 时必须配置至少 " + MIN_SECRET_LENGTH
+                        + " 字节的 hmdp.session.secret");
+            }
+        } else if (secretBytes.length == 0) {
+            // redis模式不签发签名token，随机密钥只用于拒绝请求中带来的签名token
+            secretBytes = new byte[MIN_SECRET_LENGTH];
+            random.nextBytes(secretBytes);
+        }
+        key = new SecretKeySpec(secretBytes, ALGORITHM);
+        macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        // 其他节点登出时加入本地吊销集合
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            revoked.put(Long.valueOf(parts[0]), Long.valueOf(parts[1]));
+        }, new ChannelTopic(RedisConstants.LOGIN_REVOKE_CHANNEL));
+        syncExecutor.scheduleWithFixedDelay(this::sync, 0, syncSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        syncExecutor.shutdownNow();
+    }
+
+    /**
+     * 是否为签名token；redis会话的token（uuid或base64url）中没有 '.'
+     */
+    public static boolean isSignedToken(String token) {
+        return token.indexOf('.') > 0;
+    }
+
+    /**
+     * 登录时签发新会话的token
+     */
+    public String issue(UserDTO user) {
+        issued.increment();
+        return sign(random.nextLong(), System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_TTL), user);
+    }
+
+    /**
+     * 校验签名、过期时间和吊销集合
+     * @return 校验失败返回null
+     */
+    public Claims verify(String token) {
+        int dot = token.indexOf('.');
+        try {
+            byte[] payload = DECODER.decode(token.substring(0, dot));
+            byte[] signature = DECODER.decode(token.substring(dot + 1));
+            // 固定时间比较，避免通过耗时猜测签名
+            if (!MessageDigest.isEqual(signature, mac(payload))) {
+                invalid.increment();
+                return null;
+            }
+            Claims claims = Claims.read(payload);
+            if (claims.expireAt <= System.currentTimeMillis()) {
+                return null;
+            }
+            if (revoked.containsKey(claims.sessionId)) {
+                revokedHits.increment();
+                return null;
+            }
+            verified.increment();
+            return claims;
+        } catch (IllegalArgumentException | UncheckedIOException e) {
+            // base64 或载荷格式不对
+            invalid.increment();
+            return null;
+        }
+    }
+
+    /**
+     * 剩余有效期低于阈值时签发同一会话的新token
+     * @return 不需要续期时返回null
+     */
+    public String renewIfNeeded(Claims claims) {
+        long now = System.currentTimeMillis();
+        if (claims.expireAt - now >= TimeUnit.MINUTES.toMillis(renewBelowMinutes)) {
+            return null;
+        }
+        renewed.increment();
+        return sign(claims.sessionId, now + TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_TTL), claims.user);
+    }
+
+    /**
+     * 登出：吊销token所属的会话，续期签发的其他token同时失效
+     */
+    public void revoke(String token) {
+        Claims claims = verify(token);
+        if (claims == null) {
+            return;
+        }
+        // 同一会话最晚的token不会晚于现在加一个完整的有效期
+        long expireAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_TTL);
+        revoked.put(claims.sessionId, expireAt);
+        redisTemplate.opsForZSet().add(RedisConstants.LOGIN_REVOKED_KEY, String.valueOf(claims.sessionId), expireAt);
+        redisTemplate.convertAndSend(RedisConstants.LOGIN_REVOKE_CHANNEL, claims.sessionId + ":" + expireAt);
+    }
+
+    public Map<String, Object> queryStats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("issued", issued.sum());
+        map.put("verified", verified.sum());
+        map.put("invalid", invalid.sum());
+        map.put("renewed", renewed.sum());
+        map.put("revokedSessions", revoked.size());
+        map.put("revokedHits", revokedHits.sum());
+        return map;
+    }
+
+    /**
+     * 删除已经过期的吊销记录，并从redis重新加载，补上丢失的发布订阅消息
+     */
+    private void sync() {
+        long now = System.currentTimeMillis();
+        try {
+            redisTemplate.opsForZSet().removeRangeByScore(RedisConstants.LOGIN_REVOKED_KEY, 0, now);
+            Set<ZSetOperations.TypedTuple<String>> tuples = redisTemplate.opsForZSet()
+                    .rangeByScoreWithScores(RedisConstants.LOGIN_REVOKED_KEY, now, Double.MAX_VALUE);
+            if (tuples != null) {
+                for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+                    if (tuple.getValue() != null && tuple.getScore() != null) {
+                        revoked.put(Long.valueOf(tuple.getValue()), tuple.getScore().longValue());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("同步token吊销集合失败", e);
+        }
+        revoked.values().removeIf(expireAt -> expireAt <= now);
+    }
+
+    private String sign(long sessionId, long expireAt, UserDTO user) {
+        byte[] payload = Claims.write(sessionId, expireAt, user);
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(mac(payload));
+    }
+
+    private byte[] mac(byte[] payload) {
+        return Arrays.copyOf(macs.get().doFinal(payload), SIGNATURE_LENGTH);
+    }
+
+    /**
+     * token中的会话信息
+     */
+    public static class Claims {
+        private final long sessionId;
+        private final long expireAt;
+        private final UserDTO user;
+
+        private Claims(long sessionId, long expireAt, UserDTO user) {
+            this.sessionId = sessionId;
+            this.expireAt = expireAt;
+            this.user = user;
+        }
+
+        public UserDTO getUser() {
+            return user;
+        }
+
+        private static byte[] write(long sessionId, long expireAt, UserDTO user) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(VERSION);
+                out.writeLong(sessionId);
+                out.writeLong(expireAt);
+                SessionCodec.write(out, user);
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static Claims read(byte[] payload) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                if (in.readByte() != VERSION) {
+                    throw new IllegalArgumentException("不支持的token版本");
+                }
+                long sessionId = in.readLong();
+                long expireAt = in.readLong();
+                return new Claims(sessionId, expireAt, SessionCodec.read(in));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按秒分桶的滑动窗口计数器，用于统计最近一段时间的平均速率
+ * 只用于监控指标，桶切换时的并发计数可能丢失少量数据
+ */
+public class SlidingWindowCounter {
+
+    // 窗口大小（秒）
+    private final int windowSeconds;
+    // 每个桶的计数
+    private final AtomicLongArray counts;
+    // 每个桶对应的秒
+    private final AtomicLongArray seconds;
+
+    public SlidingWindowCounter(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+        // 多一个桶给当前这一秒，当前秒还没结束，不参与速率计算
+        this.counts = new AtomicLongArray(windowSeconds + 1);
+        this.seconds = new AtomicLongArray(windowSeconds + 1);
+    }
+
+    public void add(long delta) {
+        long now = System.currentTimeMillis() / 1000;
+        int index = (int) (now % counts.length());
+        long second = seconds.get(index);
+        // 桶里是旧的一秒，重置后再计数
+        if (second != now && seconds.compareAndSet(index, second, now)) {
+            counts.set(index, 0);
+        }
+        counts.addAndGet(index, delta);
+    }
+
+    /**
+     * 最近 windowSeconds 秒（不含当前秒）的总数
+     */
+    public long sum() {
+        long now = System.currentTimeMillis() / 1000;
+        long sum = 0;
+        for (int i = 1; i <= windowSeconds; i++) {
+            long second = now - i;
+            int index = (int) (second % counts.length());
+            if (seconds.get(index) == second) {
+                sum += counts.get(index);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 最近 windowSeconds 秒的平均每秒数量
+     */
+    public double ratePerSecond() {
+        return (double) sum() / windowSeconds;
+    }
+}
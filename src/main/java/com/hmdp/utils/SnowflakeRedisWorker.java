@@ -0,0 +1,203 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 生成订单唯一id，雪花算法模式：完全在本地生成，不访问redis
+ * id结构：31位秒级时间戳 | 10位毫秒 | 10位节点id | 12位毫秒内序列号
+ * 高32位与号段模式相同（timestamp << 32），两种模式生成的id按时间排序一致
+ * 节点id在启动时从redis租用（id:node:{n}，带过期时间），后台定时续期
+ * 本地记录租约的截止时间，续期失败（redis故障、长时间GC）时到期前 lease-margin-ms 停止生成id，
+ * 确认租约丢失时立即停止，避免其他节点租到同一个节点id后生成重复的id
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "snowflake")
+public class SnowflakeRedisWorker implements RedisWorker {
+
+    /**
+     * 开始时间戳，与号段模式一致
+     */
+    private static final long BEGIN_TIMESTAMP = 1672531200L;
+
+    private static final int COUNT_BITS = 32;
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE_ID = (1 << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1 << SEQUENCE_BITS) - 1;
+
+    // 号段模式用本地时间当作UTC计算时间戳，这里保持一致；偏移量只在启动时取一次，避免夏令时切换造成时钟回拨
+    private static final long ZONE_OFFSET_MILLIS = TimeZone.getDefault().getOffset(System.currentTimeMillis());
+
+    // 允许等待的最大时钟回拨，超过则拒绝生成id
+    private static final long MAX_BACKWARD_MILLIS = 5;
+
+    private static final String NODE_KEY_PREFIX = "id:node:";
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("node_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        // 释放租约和释放锁的逻辑一样：值相同才删除
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate redisTemplate;
+
+    // 租约持有者标识
+    private final String leaseOwner = UUID.randomUUID().toString(true);
+
+    // 节点id租约时间
+    @Value("${hmdp.id.node-lease-seconds:60}")
+    private long leaseSeconds;
+
+    // 租约到期前多久停止生成id，覆盖续期请求的耗时和节点之间的时钟偏差
+    @Value("${hmdp.id.lease-margin-ms:5000}")
+    private long leaseMarginMillis;
+
+    private final ScheduledExecutorService leaseRenewExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // 没有有效租约时为-1
+    private volatile long nodeId = -1;
+
+    // 租约的截止时间（本地时钟），在发出 SETNX 或续期请求之前取时间，不会晚于redis中的实际过期时间
+    private volatile long leaseDeadline;
+
+    private long lastMillis = -1;
+    private long sequence = 0;
+
+    public SnowflakeRedisWorker(StringRedisTemplate redisTemplate) {
+        this.redisTemplate = redisTemplate;
+    }
+
+    @PostConstruct
+    private void init() {
+        leaseNodeId();
+        log.info("雪花算法id生成器使用节点id：{}", nodeId);
+        // 每 1/3 租约时间续期一次
+        long period = Math.max(1, leaseSeconds / 3);
+        leaseRenewExecutor.scheduleAtFixedRate(this::renewLease, period, period, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        leaseRenewExecutor.shutdown();
+        if (nodeId < 0) {
+            return;
+        }
+        redisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(NODE_KEY_PREFIX + nodeId), leaseOwner);
+    }
+
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        if (nodeId < 0 || System.currentTimeMillis() >= leaseDeadline - leaseMarginMillis) {
+            throw new IllegalStateException("节点id租约已过期或丢失，拒绝生成id");
+        }
+        long now = currentMillis();
+        if (now < lastMillis) {
+            // 时钟回拨
+            long backward = lastMillis - now;
+            if (backward > MAX_BACKWARD_MILLIS) {
+                throw new IllegalStateException("时钟回拨" + backward + "ms，拒绝生成id");
+            }
+            now = waitUntilAfter(lastMillis - 1);
+        }
+        if (now == lastMillis) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                // 当前毫秒序列号用完，自旋等待下一毫秒
+                now = waitUntilAfter(lastMillis);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastMillis = now;
+
+        long timestamp = now / 1000 - BEGIN_TIMESTAMP;
+        long millis = now % 1000;
+        return timestamp << COUNT_BITS
+                | millis << (NODE_BITS + SEQUENCE_BITS)
+                | nodeId << SEQUENCE_BITS
+                | sequence;
+    }
+
+    private long currentMillis() {
+        return System.currentTimeMillis() + ZONE_OFFSET_MILLIS;
+    }
+
+    private long waitUntilAfter(long millis) {
+        long now = currentMillis();
+        while (now <= millis) {
+            Thread.yield();
+            now = currentMillis();
+        }
+        return now;
+    }
+
+    /**
+     * 从随机位置开始依次尝试 setnx id:node:{n}，拿到的第一个就是本节点的id
+     */
+    private void leaseNodeId() {
+        long start = ThreadLocalRandom.current().nextLong(MAX_NODE_ID + 1);
+        for (long i = 0; i <= MAX_NODE_ID; i++) {
+            long candidate = (start + i) & MAX_NODE_ID;
+            long requestedAt = System.currentTimeMillis();
+            Boolean success = redisTemplate.opsForValue()
+                    .setIfAbsent(NODE_KEY_PREFIX + candidate, leaseOwner, leaseSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                synchronized (this) {
+                    nodeId = candidate;
+                    leaseDeadline = requestedAt + TimeUnit.SECONDS.toMillis(leaseSeconds);
+                }
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的节点id");
+    }
+
+    private void renewLease() {
+        try {
+            long current = nodeId;
+            if (current >= 0) {
+                long requestedAt = System.currentTimeMillis();
+                Long renewed = redisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(NODE_KEY_PREFIX + current),
+                        leaseOwner, String.valueOf(leaseSeconds));
+                if (renewed != null && renewed == 1) {
+                    leaseDeadline = requestedAt + TimeUnit.SECONDS.toMillis(leaseSeconds);
+                    return;
+                }
+                // 租约已丢失（例如长时间GC或redis故障），节点id可能被其他节点占用，先停止生成id再重新租用
+                synchronized (this) {
+                    nodeId = -1;
+                }
+                log.warn("节点id{}租约丢失，重新租用", current);
+            }
+            leaseNodeId();
+            log.info("雪花算法id生成器使用新的节点id：{}", nodeId);
+        } catch (Exception e) {
+            // 续期失败时租约到期前停止生成id，下一次续期时重试
+            log.error("节点id续期失败", e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 本地令牌桶：按固定速率生成令牌，最多积攒 capacity 个，允许短时间的突发
+ * 只在本节点内限流，不访问redis
+ */
+public class TokenBucket {
+
+    private final double permitsPerNano;
+
+    private final double capacity;
+
+    // 时钟，单位纳秒，测试时可以替换为模拟时钟
+    private final LongSupplier nanoClock;
+
+    private double tokens;
+
+    private long lastRefill;
+
+    /**
+     * @param permitsPerSecond 每秒生成的令牌数
+     * @param capacity 桶的容量，即允许的突发数量
+     */
+    public TokenBucket(double permitsPerSecond, double capacity) {
+        this(permitsPerSecond, capacity, System::nanoTime);
+    }
+
+    public TokenBucket(double permitsPerSecond, double capacity, LongSupplier nanoClock) {
+        if (permitsPerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("令牌生成速率和桶容量必须大于0");
+        }
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = capacity;
+        this.nanoClock = nanoClock;
+        this.tokens = capacity;
+        this.lastRefill = nanoClock.getAsLong();
+    }
+
+    /**
+     * 立即尝试获取令牌，不等待
+     * @param permits 令牌数量，大于容量时按容量计算，避免永远获取不到
+     * @return 是否获取成功
+     */
+    public synchronized boolean tryAcquire(int permits) {
+        refill();
+        double required = Math.min(permits, capacity);
+        if (tokens < required) {
+            return false;
+        }
+        tokens -= required;
+        return true;
+    }
+
+    /**
+     * 尝试获取令牌，令牌不足时最多等待 timeout
+     * @return 是否获取成功
+     */
+    public boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = nanoClock.getAsLong() + unit.toNanos(timeout);
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                refill();
+                double required = Math.min(permits, capacity);
+                if (tokens >= required) {
+                    tokens -= required;
+                    return true;
+                }
+                waitNanos = (long) Math.ceil((required - tokens) / permitsPerNano);
+            }
+            long remaining = deadline - nanoClock.getAsLong();
+            // 等到超时也攒不够令牌，直接返回
+            if (waitNanos > remaining) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * 当前可用的令牌数
+     */
+    public synchronized double available() {
+        refill();
+        return tokens;
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNano);
+            lastRefill = now;
+        }
+    }
+}
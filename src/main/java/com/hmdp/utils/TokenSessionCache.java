@@ -0,0 +1,306 @@
+package com.hmdp.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 登录token的本地缓存
+ * 每个token保存解析好的 UserDTO 和估算的redis过期时间，命中时不访问redis
+ * 剩余有效期低于阈值时才续期，续期的token由后台线程定期用一次pipeline批量 EXPIRE
+ * 登出、踢下线时删除redis中的会话，并通过发布订阅让所有节点删除本地缓存
+ */
+@Slf4j
+@Component
+public class TokenSessionCache {
+
+    // 本地缓存中不存在的token，避免过期token的每次请求都访问redis
+    private static final Session ABSENT = new Session(null, Long.MAX_VALUE);
+
+    @Value("${hmdp.session.near-cache.enabled:true}")
+    private boolean enabled;
+
+    // 本地缓存最大条数
+    @Value("${hmdp.session.near-cache.maximum-size:100000}")
+    private long maximumSize;
+
+    // 本地缓存有效期，发布订阅丢失时最多这么久后从redis重新读取
+    @Value("${hmdp.session.near-cache.expire-seconds:60}")
+    private long expireSeconds;
+
+    // 不存在的token在本地缓存的时间
+    @Value("${hmdp.session.near-cache.absent-seconds:5}")
+    private long absentSeconds;
+
+    // 剩余有效期低于该值时续期，默认每个token最多5分钟续期一次
+    @Value("${hmdp.session.refresh-below-minutes:25}")
+    private long refreshBelowMinutes;
+
+    // 批量续期的间隔
+    @Value("${hmdp.session.refresh-flush-ms:1000}")
+    private long flushMillis;
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private Cache<String, Session> sessions;
+
+    private Cache<String, Session> absentTokens;
+
+    // 等待续期的token
+    private final Set<String> pendingRefresh = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(
+            r -> new Thread(r, "session-refresh"));
+
+    private final LongAdder localHits = new LongAdder();
+    private final LongAdder redisLoads = new LongAdder();
+    private final LongAdder refreshedTokens = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public TokenSessionCache(StringRedisTemplate redisTemplate, RedisMessageListenerContainer listenerContainer) {
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = listenerContainer;
+    }
+
+    @PostConstruct
+    private void init() {
+        sessions = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireSeconds, TimeUnit.SECONDS)
+                .build();
+        absentTokens = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(absentSeconds, TimeUnit.SECONDS)
+                .build();
+        // 其他节点登出或踢下线时删除本地缓存
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String token = new String(message.getBody(), StandardCharsets.UTF_8);
+            sessions.invalidate(token);
+            pendingRefresh.remove(token);
+        }, new ChannelTopic(RedisConstants.LOGIN_INVALIDATE_CHANNEL));
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        flushExecutor.shutdown();
+        // 关闭前把等待续期的token续期
+        flush();
+    }
+
+    /**
+     * 查询token对应的用户，需要续期时加入批量续期
+     * @return 不存在或已过期返回null
+     */
+    public UserDTO get(String token) {
+        if (!enabled) {
+            UserDTO user = load(token).user;
+            if (user != null) {
+                redisTemplate.expire(RedisConstants.LOGIN_USER_KEY + token, RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+            }
+            return user;
+        }
+        long now = System.currentTimeMillis();
+        Session session = sessions.getIfPresent(token);
+        if (session == null || session.expireAt <= now) {
+            if (absentTokens.getIfPresent(token) != null) {
+                localHits.increment();
+                return null;
+            }
+            session = load(token);
+            if (session == ABSENT) {
+                absentTokens.put(token, ABSENT);
+                return null;
+            }
+            sessions.put(token, session);
+        } else {
+            localHits.increment();
+        }
+        if (session.expireAt - now < TimeUnit.MINUTES.toMillis(refreshBelowMinutes)) {
+            pendingRefresh.add(token);
+        }
+        return session.user;
+    }
+
+    /**
+     * 登出：删除redis中的会话，所有节点删除本地缓存
+     */
+    public void logout(String token) {
+        redisTemplate.delete(RedisConstants.LOGIN_USER_KEY + token);
+        invalidate(token);
+    }
+
+    /**
+     * 删除本节点和其他节点的本地缓存，例如修改了用户的昵称、头像之后
+     */
+    public void invalidate(String token) {
+        invalidations.increment();
+        sessions.invalidate(token);
+        pendingRefresh.remove(token);
+        redisTemplate.convertAndSend(RedisConstants.LOGIN_INVALIDATE_CHANNEL, token);
+    }
+
+    /**
+     * 本地缓存命中、redis读取、续期情况
+     */
+    public Map<String, Object> queryStats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        long hits = localHits.sum();
+        long loads = redisLoads.sum();
+        long flushCount = flushes.sum();
+        map.put("enabled", enabled);
+        map.put("cachedSessions", enabled ? sessions.estimatedSize() : 0);
+        map.put("localHits", hits);
+        map.put("redisLoads", loads);
+        map.put("refreshedTokens", refreshedTokens.sum());
+        map.put("flushes", flushCount);
+        map.put("invalidations", invalidations.sum());
+        // 每次请求平均访问redis的次数：读取 + 批量续期（一次pipeline算一次）
+        map.put("redisCallsPerLookup", hits + loads == 0 ? 0 : (double) (loads + flushCount) / (hits + loads));
+        return map;
+    }
+
+    /**
+     * 登录时创建会话：紧凑格式的值，一条 SET EX 命令写入，同时放入本地缓存
+     * @return 新的token
+     */
+    public String create(UserDTO user) {
+        String token = SessionCodec.newToken();
+        byte[] key = (RedisConstants.LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8);
+        byte[] value = SessionCodec.encode(user);
+        long ttlSeconds = TimeUnit.MINUTES.toSeconds(RedisConstants.LOGIN_USER_TTL);
+        redisTemplate.execute((RedisCallback<Object>) connection -> connection.setEx(key, ttlSeconds, value));
+        if (enabled) {
+            sessions.put(token, new Session(user, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds)));
+        }
+        return token;
+    }
+
+    /**
+     * 一次pipeline读取会话和剩余有效期
+     * 原来的32位token对应redis hash，新的token对应 SessionCodec 格式的字符串
+     */
+    private Session load(String token) {
+        redisLoads.increment();
+        byte[] key = (RedisConstants.LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8);
+        UserDTO user;
+        Long ttlMillis;
+        if (SessionCodec.isLegacyToken(token)) {
+            List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.hGetAll(key);
+                connection.pTtl(key);
+                return null;
+            });
+            @SuppressWarnings("unchecked")
+            Map<Object, Object> userMap = (Map<Object, Object>) results.get(0);
+            ttlMillis = (Long) results.get(1);
+            if (userMap == null || userMap.isEmpty()) {
+                return ABSENT;
+            }
+            // 不使用反射填充，字段固定
+            user = new UserDTO();
+            Object id = userMap.get("id");
+            user.setId(id == null ? null : Long.valueOf(id.toString()));
+            user.setNickName((String) userMap.get("nickName"));
+            user.setIcon((String) userMap.get("icon"));
+        } else {
+            List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                connection.get(key);
+                connection.pTtl(key);
+                return null;
+            }, RedisSerializer.byteArray());
+            byte[] value = (byte[]) results.get(0);
+            ttlMillis = (Long) results.get(1);
+            if (value == null || value.length == 0) {
+                return ABSENT;
+            }
+            try {
+                user = SessionCodec.decode(value);
+            } catch (RuntimeException e) {
+                log.warn("token{}的会话格式不正确", token, e);
+                return ABSENT;
+            }
+        }
+        if (ttlMillis == null || ttlMillis == -2) {
+            return ABSENT;
+        }
+        // 没有过期时间（-1）的会话按刚续期处理
+        long expireAt = System.currentTimeMillis()
+                + (ttlMillis < 0 ? TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_TTL) : ttlMillis);
+        return new Session(user, expireAt);
+    }
+
+    /**
+     * 批量续期，一次pipeline
+     */
+    private void flush() {
+        if (pendingRefresh.isEmpty()) {
+            return;
+        }
+        List<String> tokens = new ArrayList<>(pendingRefresh);
+        pendingRefresh.removeAll(tokens);
+        long ttlMillis = TimeUnit.MINUTES.toMillis(RedisConstants.LOGIN_USER_TTL);
+        try {
+            long expireAt = System.currentTimeMillis() + ttlMillis;
+            List<Object> results = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String token : tokens) {
+                    connection.pExpire((RedisConstants.LOGIN_USER_KEY + token).getBytes(StandardCharsets.UTF_8), ttlMillis);
+                }
+                return null;
+            });
+            flushes.increment();
+            for (int i = 0; i < tokens.size(); i++) {
+                Session session = sessions.getIfPresent(tokens.get(i));
+                if (session == null) {
+                    continue;
+                }
+                if (Boolean.TRUE.equals(results.get(i))) {
+                    session.expireAt = expireAt;
+                    refreshedTokens.increment();
+                } else {
+                    // 会话已经不存在（过期或在其他节点登出）
+                    sessions.invalidate(tokens.get(i));
+                }
+            }
+        } catch (Exception e) {
+            // 续期失败，下一次请求会重新加入
+            log.error("批量续期{}个token失败", tokens.size(), e);
+        }
+    }
+
+    private static class Session {
+        private final UserDTO user;
+        // 估算的redis过期时间
+        private volatile long expireAt;
+
+        private Session(UserDTO user, long expireAt) {
+            this.user = user;
+            this.expireAt = expireAt;
+        }
+    }
+}
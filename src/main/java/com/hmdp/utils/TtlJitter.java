@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 过期时间随机延长，避免同一批写入的key（预热、批量刷新、批量查询回写）在同一时刻过期，集中查询数据库（缓存雪崩）
+ * 延长的范围是 [0, ttl * ratio)，只延长不缩短，key的有效期不会低于配置的TTL
+ */
+public final class TtlJitter {
+
+    private TtlJitter() {
+    }
+
+    /**
+     * @param ttlMillis 配置的有效期
+     * @param ratio 随机延长的最大比例，0 表示不延长
+     * @return 加上随机值之后的有效期
+     */
+    public static long apply(long ttlMillis, double ratio) {
+        if (ratio <= 0 || ttlMillis <= 0) {
+            return ttlMillis;
+        }
+        long bound = (long) (ttlMillis * ratio);
+        return bound <= 0 ? ttlMillis : ttlMillis + ThreadLocalRandom.current().nextLong(bound);
+    }
+}
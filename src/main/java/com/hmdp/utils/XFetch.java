@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 概率提前刷新（XFetch）：越接近过期、重建越慢，读请求提前刷新的概率越大
+ * 判断条件：now - delta * beta * ln(rand) >= expireAt，rand 为 (0,1] 的随机数
+ * 每个读请求独立判断，不需要加锁，过期前通常只有一个请求触发刷新
+ */
+public final class XFetch {
+
+    private XFetch() {
+    }
+
+    /**
+     * @param now 当前时间
+     * @param expireAt 过期时间
+     * @param deltaMillis 上一次重建花费的时间
+     * @param beta 大于1时更早刷新，小于1时更晚刷新
+     */
+    public static boolean shouldRefresh(long now, long expireAt, long deltaMillis, double beta) {
+        double random = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return now - deltaMillis * beta * Math.log(random) >= expireAt;
+    }
+}
@@ -0,0 +1,26 @@
+-- 带版本号写入缓存，redis中已有更高版本时不写入 --
+-- KEYS[1]: 缓存key; ARGV[1]: 值; ARGV[2]: 版本号; ARGV[3]: 过期时间(毫秒)，0表示不过期 --
+local key = KEYS[1]
+local version = tonumber(ARGV[2])
+local current = 0
+-- 二进制格式：[0xB2][标志位][8字节逻辑过期时间][8字节版本号]，只读取头部 --
+local head = redis.call('getrange', key, 0, 17)
+if(string.len(head) == 18 and string.byte(head, 1) == 178) then
+    current = struct.unpack('>i8', head, 11)
+elseif(string.sub(head, 1, 1) == '{') then
+    -- json格式：RedisData 中的 version 字段 --
+    local ok, data = pcall(cjson.decode, redis.call('get', key))
+    if(ok and type(data) == 'table' and tonumber(data['version'])) then
+        current = tonumber(data['version'])
+    end
+end
+-- 版本号相同时写入：商铺的更新时间严格递增（updateByShop），版本号相同的数据内容也相同 --
+if(current > version) then
+    return 0
+end
+if(tonumber(ARGV[3]) > 0) then
+    redis.call('set', key, ARGV[1], 'px', ARGV[3])
+else
+    redis.call('set', key, ARGV[1])
+end
+return 1
@@ -0,0 +1,30 @@
+-- 令牌桶限流 --
+-- KEYS[1]: 令牌桶key; ARGV[1]: 每秒生成的令牌数; ARGV[2]: 桶容量; ARGV[3]: 本次需要的令牌数 --
+-- 返回1表示通过，0表示被限流 --
+-- 使用redis的时间，多个节点的时钟不一致也不影响；之后有写命令，需要按命令复制 --
+redis.replicate_commands()
+local key = KEYS[1]
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local requested = tonumber(ARGV[3])
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local bucket = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if(tokens == nil or ts == nil) then
+    -- 第一次访问，桶是满的 --
+    tokens = capacity
+    ts = now
+end
+-- 按经过的时间补充令牌 --
+tokens = math.min(capacity, tokens + math.max(0, now - ts) * rate / 1000)
+local allowed = 0
+if(tokens >= requested) then
+    tokens = tokens - requested
+    allowed = 1
+end
+redis.call('hset', key, 'tokens', tostring(tokens), 'ts', tostring(now))
+-- 桶补满之后的key没有意义，过期删除 --
+redis.call('pexpire', key, math.ceil(capacity / rate * 1000) + 1000)
+return allowed
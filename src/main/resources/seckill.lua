@@ -15,7 +15,25 @@ local stock = 'seckill:stock:' .. voucherId
 --- 订单key
 local order = 'seckill:order:' .. userId
 
+--- 售卖时间key，创建秒杀券时写入 begin、end（毫秒时间戳）
+local window = 'seckill:voucher:' .. voucherId
+
 --- 脚本业务
+--- 使用redis的时间判断售卖时间，TIME 是非确定命令，之后还要写入，需要按命令复制
+redis.replicate_commands()
+local range = redis.call('hmget', window, 'begin', 'end')
+if(range[1] and range[2]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(range[1])) then
+        --- 秒杀还没有开始，返回3
+        return 3
+    end
+    if(now > tonumber(range[2])) then
+        --- 秒杀已经结束，返回4
+        return 4
+    end
+end
 --- 判断库存是否充足
 if(tonumber(redis.call('get',stock)) <= 0) then
     --- 库存不充足,返回1
@@ -0,0 +1,47 @@
+--- 分片库存的秒杀脚本，一次只操作一个分片，所有key使用同一个hash tag，在集群中落在同一个slot
+--- 1. 参数列表
+--- KEYS[1] 分片库存key  seckill:stock:{voucherId:shard}
+--- KEYS[2] 分片下单用户key  seckill:order:{voucherId:shard}
+--- KEYS[3] 分片售卖时间key  seckill:voucher:{voucherId:shard}
+--- KEYS[4] 分片订单stream  stream.orders:{voucherId:shard}
+--- 1.1 优惠券id
+local voucherId = ARGV[1]
+--- 1.2 用户id
+local userId = ARGV[2]
+--- 1.3 订单id
+local orderId = ARGV[3]
+
+--- 使用redis的时间判断售卖时间，TIME 是非确定命令，之后还要写入，需要按命令复制
+redis.replicate_commands()
+local range = redis.call('hmget', KEYS[3], 'begin', 'end')
+if(range[1] and range[2]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(range[1])) then
+        --- 秒杀还没有开始，返回3
+        return 3
+    end
+    if(now > tonumber(range[2])) then
+        --- 秒杀已经结束，返回4
+        return 4
+    end
+end
+
+--- 先判断用户是否在该分片下过单，再判断库存，
+--- 用户总是按相同顺序尝试各个分片，分片售罄后不会再补货，所以不会在两个分片各下一单
+if(redis.call('sismember', KEYS[2], userId) == 1) then
+    --- 重复下单，返回2
+    return 2
+end
+local stock = tonumber(redis.call('get', KEYS[1]))
+if(stock == nil or stock <= 0) then
+    --- 该分片库存不足，返回1，由调用方尝试下一个分片
+    return 1
+end
+--- 扣库存
+redis.call('incrby', KEYS[1], -1)
+--- 保存下单用户
+redis.call('sadd', KEYS[2], userId)
+--- 发送消息,将订单的所用信息发送,用户id，优惠券id，自己的id（订单id）
+redis.call('xadd', KEYS[4], '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
@@ -0,0 +1,13 @@
+--- 结束秒杀时收回一个库存key的剩余库存：清零并累加到剩余库存key，两步在一个脚本中完成，中途失败不会丢失剩余库存
+--- 两个key使用同一个hash tag，在集群中落在同一个slot
+--- KEYS[1] 库存key  seckill:stock:{voucherId:shard} 或 seckill:stock:voucherId
+--- KEYS[2] 剩余库存key  seckill:stock:left:{voucherId:shard} 或 seckill:stock:left:{seckill:stock:voucherId}
+--- 返回该库存key累计收回的剩余库存，重复执行时库存已经是0，结果不变
+local left = redis.call('get', KEYS[1])
+if(left ~= false) then
+    redis.call('set', KEYS[1], '0')
+    if(tonumber(left) > 0) then
+        redis.call('incrby', KEYS[2], left)
+    end
+end
+return tonumber(redis.call('get', KEYS[2]) or '0')
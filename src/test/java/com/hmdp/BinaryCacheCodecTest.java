@@ -0,0 +1,110 @@
+package com.hmdp;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 二进制缓存格式：头部字段（逻辑过期时间、版本号、重建耗时、压缩标记）和对象的往返
+ */
+class BinaryCacheCodecTest {
+
+    private static final long EXPIRE_AT = 1_700_000_000_123L;
+
+    private static final long VERSION = 1_650_000_000_000L;
+
+    @Test
+    void roundTripWithHeader() {
+        BinaryCacheCodec codec = new BinaryCacheCodec();
+        Shop shop = shop();
+        byte[] bytes = codec.encode(shop, EXPIRE_AT, VERSION, 1500);
+        assertTrue(codec.supports(bytes));
+        assertEquals(EXPIRE_AT, codec.readExpireAt(bytes));
+        assertEquals(VERSION, codec.readVersion(bytes));
+        assertEquals(1500, codec.readDelta(bytes));
+        assertFalse(codec.isCompressed(bytes));
+        assertEquals(bytes.length, codec.rawLength(bytes));
+        assertEquals(shop, codec.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void optionalFieldsDefaultToEmpty() {
+        BinaryCacheCodec codec = new BinaryCacheCodec();
+        Shop shop = shop();
+        byte[] bytes = codec.encode(shop, CacheCodec.NO_EXPIRE);
+        assertEquals(CacheCodec.NO_EXPIRE, codec.readExpireAt(bytes));
+        assertEquals(CacheCodec.NO_VERSION, codec.readVersion(bytes));
+        assertEquals(0, codec.readDelta(bytes));
+        // 没有重建耗时时头部不带这4个字节
+        assertEquals(codec.encode(shop, EXPIRE_AT, VERSION, 1).length - 4, bytes.length);
+        assertEquals(shop, codec.decode(bytes, Shop.class));
+    }
+
+    @Test
+    void compressesLargeValues() {
+        BinaryCacheCodec codec = new BinaryCacheCodec(256);
+        Blog blog = new Blog()
+                .setId(4L)
+                .setShopId(4L)
+                .setUserId(2L)
+                .setTitle("无尽浪漫的夜晚")
+                .setContent(repeat("在万花丛中摇晃着红酒杯，品战斧牛排。", 100))
+                .setLiked(36)
+                .setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1));
+        byte[] bytes = codec.encode(blog, EXPIRE_AT, VERSION, 20);
+        assertTrue(codec.isCompressed(bytes));
+        assertTrue(codec.rawLength(bytes) > bytes.length);
+        // 压缩只影响对象部分，头部字段不变
+        assertEquals(EXPIRE_AT, codec.readExpireAt(bytes));
+        assertEquals(VERSION, codec.readVersion(bytes));
+        assertEquals(20, codec.readDelta(bytes));
+        assertEquals(blog, codec.decode(bytes, Blog.class));
+        // 不压缩的实例也能读取压缩过的值
+        assertEquals(blog, new BinaryCacheCodec().decode(bytes, Blog.class));
+        // 小对象不压缩
+        assertFalse(codec.isCompressed(codec.encode(shop(), EXPIRE_AT)));
+    }
+
+    @Test
+    void doesNotClaimJson() {
+        byte[] json = new JsonCacheCodec().encode(shop(), EXPIRE_AT);
+        assertFalse(new BinaryCacheCodec().supports(json));
+        assertFalse(new BinaryCacheCodec().supports("{}".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 11, 16, 5, 47));
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,53 @@
+package com.hmdp;
+
+import com.hmdp.utils.BloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 布隆过滤器：加入过的id一定返回存在，误判率接近配置值，位图可以复制到另一个过滤器
+ */
+@Slf4j
+class BloomFilterTest {
+
+    private static final int INSERTIONS = 100_000;
+
+    private static final double FPP = 0.01;
+
+    @Test
+    void noFalseNegatives() {
+        BloomFilter filter = new BloomFilter(INSERTIONS, FPP);
+        for (long id = 1; id <= INSERTIONS; id++) {
+            filter.put(id * 7);
+        }
+        for (long id = 1; id <= INSERTIONS; id++) {
+            assertTrue(filter.mightContain(id * 7), "id " + id * 7);
+        }
+        int falsePositives = 0;
+        for (long id = 1; id <= INSERTIONS; id++) {
+            if (filter.mightContain(id * 7 + 1)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / INSERTIONS;
+        log.info("{}位，{}个哈希函数，误判率{}", filter.getNumBits(), filter.getNumHashes(), rate);
+        assertTrue(rate < FPP * 2, "误判率" + rate);
+    }
+
+    @Test
+    void mergeCopiesBits() {
+        BloomFilter source = new BloomFilter(1000, FPP);
+        for (long id = 1; id <= 1000; id++) {
+            source.put(id);
+        }
+        BloomFilter copy = new BloomFilter(1000, FPP);
+        copy.merge(source.toByteArray());
+        for (long id = 1; id <= 1000; id++) {
+            assertTrue(copy.mightContain(id));
+        }
+        assertArrayEquals(source.toByteArray(), copy.toByteArray());
+    }
+}
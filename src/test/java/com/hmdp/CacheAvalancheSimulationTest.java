@@ -0,0 +1,126 @@
+package com.hmdp;
+
+import com.hmdp.utils.TokenBucket;
+import com.hmdp.utils.TtlJitter;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 模拟缓存雪崩：预热时同一批写入的key在同一时刻过期，过期后的读请求集中查询数据库
+ * 使用模拟时钟，不需要redis和数据库；统计每个时间窗口内的数据库查询次数
+ * 对比：不做处理、过期时间随机延长（TtlJitter）、数据库加载限流（TokenBucket）
+ */
+@Slf4j
+class CacheAvalancheSimulationTest {
+
+    // 预热的key数量
+    private static final int KEYS = 20000;
+
+    // 缓存有效期
+    private static final long TTL_MILLIS = 30_000;
+
+    // 模拟时钟的步长，每个key每一步被读取一次
+    private static final long STEP_MILLIS = 10;
+
+    // 统计窗口
+    private static final long WINDOW_MILLIS = 100;
+
+    // 模拟时长，限流时 20000 个key需要约40s才能全部重新加载
+    private static final long DURATION_MILLIS = 3 * TTL_MILLIS;
+
+    @Test
+    void jitterSpreadsExpiry() {
+        long[] withoutJitter = simulate(0, null);
+        long[] withJitter = simulate(0.1, null);
+        log.info("不做处理，每{}ms的数据库查询：峰值{}", WINDOW_MILLIS, max(withoutJitter));
+        log.info("过期时间随机延长10%，每{}ms的数据库查询：峰值{}", WINDOW_MILLIS, max(withJitter));
+        // 每个key都重新加载了一次
+        assertEquals(KEYS, sum(withoutJitter));
+        assertEquals(KEYS, sum(withJitter));
+        // 不做处理时所有key在同一个窗口内查询数据库
+        assertEquals(KEYS, max(withoutJitter));
+        // 随机延长后分散到 TTL*0.1 = 3s 内，约30个窗口
+        assertTrue(max(withJitter) < KEYS / 10, "峰值" + max(withJitter));
+    }
+
+    @Test
+    void limiterCapsDbRate() {
+        double permitsPerSecond = 500;
+        double burst = 100;
+        long[] limited = simulate(0, new double[]{permitsPerSecond, burst});
+        long[] perSecond = rollUp(limited, TimeUnit.SECONDS.toMillis(1) / WINDOW_MILLIS);
+        log.info("数据库加载限流{}/s，每秒的数据库查询：峰值{}", permitsPerSecond, max(perSecond));
+        // 没有拿到令牌的key继续返回旧数据，之后全部重新加载
+        assertEquals(KEYS, sum(limited));
+        // 任意一秒内不超过 速率 + 突发
+        assertTrue(max(perSecond) <= permitsPerSecond + burst, "峰值" + max(perSecond));
+    }
+
+    @Test
+    void jitterAndLimiterTogether() {
+        long[] both = simulate(0.1, new double[]{500, 100});
+        long[] perSecond = rollUp(both, TimeUnit.SECONDS.toMillis(1) / WINDOW_MILLIS);
+        log.info("随机延长10%并限流500/s，每秒的数据库查询：峰值{}", max(perSecond));
+        assertEquals(KEYS, sum(both));
+        assertTrue(max(perSecond) <= 600, "峰值" + max(perSecond));
+    }
+
+    /**
+     * @param jitterRatio 过期时间随机延长的比例
+     * @param limiter 为null时不限流，否则为 {每秒令牌数, 突发数量}
+     * @return 每个统计窗口的数据库查询次数
+     */
+    private static long[] simulate(double jitterRatio, double[] limiter) {
+        long[] clock = {0};
+        TokenBucket bucket = limiter == null ? null
+                : new TokenBucket(limiter[0], limiter[1], () -> TimeUnit.MILLISECONDS.toNanos(clock[0]));
+        // 预热：所有key在 t=0 写入
+        long[] expireAt = new long[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            expireAt[i] = TtlJitter.apply(TTL_MILLIS, jitterRatio);
+        }
+        long[] windows = new long[(int) (DURATION_MILLIS / WINDOW_MILLIS)];
+        for (long now = 0; now < DURATION_MILLIS; now += STEP_MILLIS) {
+            clock[0] = now;
+            int window = (int) (now / WINDOW_MILLIS);
+            for (int i = 0; i < KEYS; i++) {
+                // 已经过期，读请求触发重建；拿不到令牌时返回旧数据，下一次读取再尝试
+                if (expireAt[i] <= now && (bucket == null || bucket.tryAcquire(1))) {
+                    windows[window]++;
+                    // 只统计第一轮过期，重新加载后不再过期
+                    expireAt[i] = Long.MAX_VALUE;
+                }
+            }
+        }
+        return windows;
+    }
+
+    private static long[] rollUp(long[] windows, long factor) {
+        long[] result = new long[(int) ((windows.length + factor - 1) / factor)];
+        for (int i = 0; i < windows.length; i++) {
+            result[(int) (i / factor)] += windows[i];
+        }
+        return result;
+    }
+
+    private static long max(long[] values) {
+        long max = 0;
+        for (long value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,185 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import lombok.extern.slf4j.Slf4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 逻辑过期缓存读写的序列化对比：原来的 hutool json（RedisData 包装）与二进制格式
+ * 以及大对象（2KB正文的博客）压缩与不压缩的对比
+ * 运行：mvn test-compile 后执行本类的 main 方法，surefire 排除了 *Benchmark，mvn test 不会执行
+ */
+@Slf4j
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheCodecBenchmark {
+
+    private final CacheCodec binaryCodec = new BinaryCacheCodec();
+
+    private final CacheCodec jsonCodec = new JsonCacheCodec();
+
+    private final CacheCodec lz4Codec = new BinaryCacheCodec(1024);
+
+    private Shop shop;
+
+    private long expireAt;
+
+    private String json;
+
+    private byte[] binary;
+
+    private Blog blog;
+
+    private byte[] blogBinary;
+
+    private byte[] blogLz4;
+
+    @Setup
+    public void setup() {
+        shop = new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 11, 16, 5, 47));
+        expireAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(30);
+        json = new String(jsonCodec.encode(shop, expireAt), StandardCharsets.UTF_8);
+        binary = binaryCodec.encode(shop, expireAt);
+        if (!shop.equals(binaryCodec.decode(binary, Shop.class))) {
+            throw new IllegalStateException("二进制格式解析结果不一致");
+        }
+        log.info("json: {} bytes, binary: {} bytes", json.getBytes(StandardCharsets.UTF_8).length, binary.length);
+        // 随机组合常用字，避免重复文本的压缩率过高
+        String chars = "的一是在不了有和人这中大为上个国我以要他时来用们生到作地于出就分对成会可主发年动同工也能下过子说产种面而方后多定行学法所民得经十三之进着等部度家电力里如水化高自二理起小物现实加量都两体制机当使点从业本去把性好应开它合还因由其些然前外天政四日那社义事平形相全表间样与关各重新线内数正心反你明看原又么利比或但质气第向道命此变条只没结解问意建月公无系军很情者最立代想已通并提直题党程展五果料象员革位入常文总次品式活设及管特件长求老头基资边流路级少图山统接知较将组见计别她手角期根论运农指几九区强放决西被干做必战先回则任取据处队南给色光门即保治北造百规热领七海口东导器压志世金增争济阶油思术极交受联什认六共权收证改清己美再采转更单风切打白教速花带安场身车例真务具万每目至达走积示议声报斗完类八离华名确才科张信马节话米整空元况今集温传土许步群广石记需段研界拉林律叫且究观越织装影算低持音众书布复容儿须际商非验连断深难近矿千周委素技备半办青省列习响约支般史感劳便团往酸历市克何除消构府称太准精值号率族维划选标写存候毛亲快效斯院查江型眼王按格养易置派层片始却专状育厂京识适属圆包火住调满县局照参红细引听该铁价严";
+        Random random = new Random(42);
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 2048) {
+            content.append(chars.charAt(random.nextInt(chars.length())));
+            if (random.nextInt(12) == 0) {
+                content.append(random.nextBoolean() ? "，" : "。");
+            }
+        }
+        StringBuilder images = new StringBuilder();
+        for (int i = 0; i < 9; i++) {
+            images.append(i == 0 ? "" : ",").append("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a").append(i).append(".jpg");
+        }
+        blog = new Blog()
+                .setId(4L)
+                .setShopId(4L)
+                .setUserId(2L)
+                .setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩")
+                .setImages(images.toString())
+                .setContent(content.toString())
+                .setLiked(36)
+                .setComments(104)
+                .setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1))
+                .setUpdateTime(LocalDateTime.of(2022, 3, 10, 14, 26, 34));
+        blogBinary = binaryCodec.encode(blog, expireAt);
+        blogLz4 = lz4Codec.encode(blog, expireAt);
+        if (!lz4Codec.isCompressed(blogLz4) || !blog.equals(lz4Codec.decode(blogLz4, Blog.class))) {
+            throw new IllegalStateException("压缩格式解析结果不一致");
+        }
+        log.info("blog binary: {} bytes, lz4: {} bytes", blogBinary.length, blogLz4.length);
+    }
+
+    /**
+     * 原来 CacheUtil 的写入方式
+     */
+    @Benchmark
+    public String jsonEncode() {
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+        return JSONUtil.toJsonStr(redisData);
+    }
+
+    /**
+     * 原来 CacheUtil 的读取方式：先转 RedisData，再把 JSONObject 转成实体
+     */
+    @Benchmark
+    public Shop jsonDecode() {
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        Shop result = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
+        return redisData.getExpireTime().isAfter(LocalDateTime.now()) ? result : null;
+    }
+
+    @Benchmark
+    public byte[] binaryEncode() {
+        return binaryCodec.encode(shop, expireAt);
+    }
+
+    @Benchmark
+    public Shop binaryDecode() {
+        return binaryCodec.readExpireAt(binary) > System.currentTimeMillis() ? binaryCodec.decode(binary, Shop.class) : null;
+    }
+
+    /**
+     * 只判断是否过期，不解析对象
+     */
+    @Benchmark
+    public long binaryReadExpireAt() {
+        return binaryCodec.readExpireAt(binary);
+    }
+
+    @Benchmark
+    public byte[] blogEncode() {
+        return binaryCodec.encode(blog, expireAt);
+    }
+
+    @Benchmark
+    public Blog blogDecode() {
+        return binaryCodec.decode(blogBinary, Blog.class);
+    }
+
+    @Benchmark
+    public byte[] blogLz4Encode() {
+        return lz4Codec.encode(blog, expireAt);
+    }
+
+    @Benchmark
+    public Blog blogLz4Decode() {
+        return lz4Codec.decode(blogLz4, Blog.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CacheCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,362 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.CacheUtil;
+import com.hmdp.utils.DbLoadLimiter;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisClusterConnection;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisSentinelConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 模拟热点key过期时的击穿，直接调用 CacheUtil 的三种方式：
+ * mutex：queryWithPassThrough，过期后获取互斥锁的请求查询数据库，其他请求等待
+ * logical：queryWithLogicalExpire，过期后提交重建，获取锁的任务重建，返回旧数据
+ * xfetch：queryWithEarlyRefresh，每个请求按概率决定是否提前异步刷新，不需要锁
+ * redis用内存中的 RedisConnection 代替（支持 GET、SET、MGET、DEL、PUBLISH 和 cache_cas.lua 的版本比较），
+ * 每次命令或pipeline用固定的往返时间模拟；数据库查询用固定耗时模拟
+ * 关闭本地缓存、热点key和数据库加载限流，只比较三种重建方式
+ * 结果中 Score 为读请求的平均耗时；每轮结束时在日志中输出每秒数据库查询次数和 SETNX 次数
+ * 运行：mvn test-compile 后执行本类的 main 方法，surefire 排除了 *Benchmark，mvn test 不会执行
+ */
+@Slf4j
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Threads(16)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheModeBenchmark {
+
+    private static final String KEY_PREFIX = "cache:shop:";
+
+    private static final Long SHOP_ID = 1L;
+
+    // 缓存有效期
+    private static final long TTL_MILLIS = 200;
+
+    // 数据库查询耗时
+    private static final long DB_MILLIS = 20;
+
+    // redis往返时间
+    private static final long RTT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    // 数据库中的商铺，更新时间不变，重建写入的版本号相同
+    private static final LocalDateTime UPDATE_TIME = LocalDateTime.now().withNano(0);
+
+    // 模拟 cache_cas.lua 时读取版本号
+    private static final BinaryCacheCodec CODEC = new BinaryCacheCodec();
+
+    @Param({"mutex", "logical", "xfetch"})
+    public String mode;
+
+    // 模拟redis中的数据
+    private final Map<String, StoredValue> redis = new ConcurrentHashMap<>();
+
+    private final LongAdder dbLoads = new LongAdder();
+
+    private final LongAdder lockCalls = new LongAdder();
+
+    private CacheRebuildExecutor rebuildExecutor;
+
+    private CacheUtil cacheUtil;
+
+    private long begin;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        redis.clear();
+        StringRedisTemplate redisTemplate = new StringRedisTemplate(new StubConnectionFactory());
+
+        HotKeyDetector hotKeyDetector = new HotKeyDetector();
+        ReflectionTestUtils.setField(hotKeyDetector, "enabled", false);
+        ReflectionTestUtils.setField(hotKeyDetector, "maxHotKeys", 100);
+        ReflectionTestUtils.setField(hotKeyDetector, "ttlMillis", 1000L);
+        ReflectionTestUtils.invokeMethod(hotKeyDetector, "init");
+
+        rebuildExecutor = new CacheRebuildExecutor();
+        ReflectionTestUtils.setField(rebuildExecutor, "threads", 10);
+        ReflectionTestUtils.setField(rebuildExecutor, "queueCapacity", 1000);
+        ReflectionTestUtils.setField(rebuildExecutor, "maxPerPrefix", 5);
+        ReflectionTestUtils.setField(rebuildExecutor, "rejectPolicy", "drop");
+        ReflectionTestUtils.setField(rebuildExecutor, "shutdownTimeoutSeconds", 1L);
+        ReflectionTestUtils.invokeMethod(rebuildExecutor, "init");
+
+        DbLoadLimiter dbLoadLimiter = new DbLoadLimiter();
+        ReflectionTestUtils.setField(dbLoadLimiter, "enabled", false);
+
+        cacheUtil = new CacheUtil(redisTemplate, new RedisMessageListenerContainer(), new IdBloomFilter(),
+                hotKeyDetector, rebuildExecutor, dbLoadLimiter);
+        ReflectionTestUtils.setField(cacheUtil, "codecName", "binary");
+        ReflectionTestUtils.setField(cacheUtil, "compressThreshold", 1024);
+        ReflectionTestUtils.setField(cacheUtil, "ttlJitter", 0.1);
+        ReflectionTestUtils.setField(cacheUtil, "localCacheEnabled", false);
+        ReflectionTestUtils.setField(cacheUtil, "localCacheMaximumSize", 10000L);
+        ReflectionTestUtils.setField(cacheUtil, "localCacheExpireSeconds", 10L);
+        ReflectionTestUtils.setField(cacheUtil, "xfetchBeta", 1.0);
+        ReflectionTestUtils.setField(cacheUtil, "loadTimeoutMillis", 3000L);
+        ReflectionTestUtils.invokeMethod(cacheUtil, "init");
+        cacheUtil.registerVersion(Shop.class, Shop::getUpdateTime);
+
+        dbLoads.reset();
+        lockCalls.reset();
+        begin = System.nanoTime();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        log.info("[{}] db loads/s: {}, SETNX/s: {}", mode, String.format("%.1f", dbLoads.sum() / seconds),
+                String.format("%.1f", lockCalls.sum() / seconds));
+        ReflectionTestUtils.invokeMethod(rebuildExecutor, "destroy");
+    }
+
+    @Benchmark
+    public Object read() {
+        switch (mode) {
+            case "mutex":
+                return cacheUtil.queryWithPassThrough(KEY_PREFIX, SHOP_ID, Shop.class,
+                        this::loadFromDb, TTL_MILLIS, TimeUnit.MILLISECONDS);
+            case "logical":
+                return cacheUtil.queryWithLogicalExpire(SHOP_ID, KEY_PREFIX, Shop.class,
+                        this::loadFromDb, TTL_MILLIS, TimeUnit.MILLISECONDS);
+            default:
+                return cacheUtil.queryWithEarlyRefresh(KEY_PREFIX, SHOP_ID, Shop.class,
+                        this::loadFromDb, TTL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Shop loadFromDb(Long id) {
+        dbLoads.increment();
+        try {
+            Thread.sleep(DB_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new Shop().setId(id).setName("benchmark").setUpdateTime(UPDATE_TIME);
+    }
+
+    /**
+     * redis中的值和过期时间
+     */
+    private static class StoredValue {
+        private final byte[] bytes;
+        // 过期时间，0表示不过期
+        private final long expireAt;
+
+        private StoredValue(byte[] bytes, long expireAt) {
+            this.bytes = bytes;
+            this.expireAt = expireAt;
+        }
+
+        private boolean alive() {
+            return expireAt == 0 || expireAt > System.currentTimeMillis();
+        }
+    }
+
+    private class StubConnectionFactory implements RedisConnectionFactory {
+
+        @Override
+        public RedisConnection getConnection() {
+            return (RedisConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{RedisConnection.class}, new StubConnection());
+        }
+
+        @Override
+        public RedisClusterConnection getClusterConnection() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getConvertPipelineAndTxResults() {
+            return true;
+        }
+
+        @Override
+        public RedisSentinelConnection getSentinelConnection() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DataAccessException translateExceptionIfPossible(RuntimeException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * 只实现 CacheUtil 用到的命令；pipeline中的命令在 closePipeline 时一起返回结果，只计一次往返
+     */
+    private class StubConnection implements InvocationHandler {
+
+        private List<Object> pipeline;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "openPipeline":
+                    pipeline = new ArrayList<>();
+                    return null;
+                case "closePipeline":
+                    List<Object> results = pipeline;
+                    pipeline = null;
+                    LockSupport.parkNanos(RTT_NANOS);
+                    return results;
+                case "isPipelined":
+                    return pipeline != null;
+                case "isQueueing":
+                case "isClosed":
+                    return false;
+                case "close":
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "StubConnection";
+                default:
+                    Object result = execute(method.getName(), args);
+                    if (pipeline != null) {
+                        pipeline.add(result);
+                        return null;
+                    }
+                    LockSupport.parkNanos(RTT_NANOS);
+                    return result;
+            }
+        }
+
+        private Object execute(String command, Object[] args) {
+            switch (command) {
+                case "get":
+                    return get(key(args[0]));
+                case "mGet": {
+                    List<byte[]> values = new ArrayList<>();
+                    for (byte[] rawKey : (byte[][]) args[0]) {
+                        values.add(get(key(rawKey)));
+                    }
+                    return values;
+                }
+                case "set":
+                    return set(args);
+                case "eval":
+                    return compareAndSet((byte[][]) args[3]);
+                case "del": {
+                    long deleted = 0;
+                    for (byte[] rawKey : (byte[][]) args[0]) {
+                        deleted += redis.remove(key(rawKey)) != null ? 1 : 0;
+                    }
+                    return deleted;
+                }
+                case "publish":
+                    return 0L;
+                default:
+                    throw new UnsupportedOperationException(command);
+            }
+        }
+
+        private byte[] get(String key) {
+            StoredValue value = redis.get(key);
+            return value != null && value.alive() ? value.bytes : null;
+        }
+
+        private Boolean set(Object[] args) {
+            String key = key(args[0]);
+            byte[] bytes = (byte[]) args[1];
+            if (args.length == 2) {
+                redis.put(key, new StoredValue(bytes, 0));
+                return true;
+            }
+            Expiration expiration = (Expiration) args[2];
+            long expireAt = expiration.isPersistent() ? 0
+                    : System.currentTimeMillis() + expiration.getExpirationTimeInMilliseconds();
+            StoredValue stored = new StoredValue(bytes, expireAt);
+            if (args[3] != RedisStringCommands.SetOption.SET_IF_ABSENT) {
+                redis.put(key, stored);
+                return true;
+            }
+            // SETNX：已有未过期的值时不写入
+            lockCalls.increment();
+            boolean[] written = {false};
+            redis.compute(key, (k, current) -> {
+                if (current != null && current.alive()) {
+                    return current;
+                }
+                written[0] = true;
+                return stored;
+            });
+            return written[0];
+        }
+
+        /**
+         * 与 cache_cas.lua 相同：redis中的版本更高时不写入
+         * keysAndArgs: 缓存key、值、版本号、过期时间(毫秒)
+         */
+        private Long compareAndSet(byte[][] keysAndArgs) {
+            String key = key(keysAndArgs[0]);
+            byte[] bytes = keysAndArgs[1];
+            long version = Long.parseLong(key(keysAndArgs[2]));
+            long ttlMillis = Long.parseLong(key(keysAndArgs[3]));
+            StoredValue stored = new StoredValue(bytes, ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0);
+            long[] result = {0};
+            redis.compute(key, (k, current) -> {
+                byte[] currentBytes = current != null && current.alive() ? current.bytes : null;
+                if (currentBytes != null && CODEC.supports(currentBytes) && CODEC.readVersion(currentBytes) > version) {
+                    return current;
+                }
+                result[0] = 1;
+                return stored;
+            });
+            return result[0];
+        }
+
+        private String key(Object raw) {
+            return new String((byte[]) raw, StandardCharsets.UTF_8);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CacheModeBenchmark.class.getSimpleName()).build()).run();
+    }
+}
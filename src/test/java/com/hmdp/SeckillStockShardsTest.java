@@ -0,0 +1,52 @@
+package com.hmdp;
+
+import com.hmdp.utils.SeckillStockShards;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀库存分片：拆分后总数不变，各分片最多相差1
+ */
+class SeckillStockShardsTest {
+
+    @Test
+    void splitKeepsTotal() {
+        assertArrayEquals(new int[]{4, 3, 3}, SeckillStockShards.split(10, 3));
+        assertArrayEquals(new int[]{1, 1, 0, 0}, SeckillStockShards.split(2, 4));
+        assertArrayEquals(new int[]{0, 0}, SeckillStockShards.split(0, 2));
+        assertArrayEquals(new int[]{7}, SeckillStockShards.split(7, 1));
+        for (int stock = 0; stock <= 200; stock++) {
+            for (int shards = 1; shards <= 16; shards++) {
+                int[] parts = SeckillStockShards.split(stock, shards);
+                assertEquals(shards, parts.length);
+                assertEquals(stock, Arrays.stream(parts).sum());
+                int max = Arrays.stream(parts).max().getAsInt();
+                int min = Arrays.stream(parts).min().getAsInt();
+                assertTrue(max - min <= 1, stock + "/" + shards);
+            }
+        }
+    }
+
+    @Test
+    void shardKeysShareHashTag() {
+        // 同一分片的key在一个lua脚本中访问，集群模式下必须在同一个slot
+        String tag = hashTag(SeckillStockShards.stockKey(7L, 2));
+        assertEquals(tag, hashTag(SeckillStockShards.orderKey(7L, 2)));
+        assertEquals(tag, hashTag(SeckillStockShards.voucherKey(7L, 2)));
+        assertEquals(tag, hashTag(SeckillStockShards.streamKey(7L, 2)));
+        assertEquals(tag, hashTag(SeckillStockShards.leftKey(7L, 2)));
+        int shard = SeckillStockShards.homeShard(1010L, 4);
+        assertTrue(shard >= 0 && shard < 4);
+        assertEquals(shard, SeckillStockShards.homeShard(1010L, 4));
+    }
+
+    private static String hashTag(String key) {
+        int begin = key.indexOf('{');
+        return key.substring(begin, key.indexOf('}', begin) + 1);
+    }
+}
@@ -0,0 +1,56 @@
+package com.hmdp;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.SessionCodec;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 登录会话的紧凑格式和新token
+ */
+class SessionCodecTest {
+
+    @Test
+    void roundTrip() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        assertEquals(user, SessionCodec.decode(SessionCodec.encode(user)));
+    }
+
+    @Test
+    void nullFieldsBecomeEmpty() {
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        UserDTO decoded = SessionCodec.decode(SessionCodec.encode(user));
+        assertEquals(1L, decoded.getId());
+        assertEquals("", decoded.getNickName());
+        assertEquals("", decoded.getIcon());
+    }
+
+    @Test
+    void rejectsUnknownVersion() {
+        UserDTO user = new UserDTO();
+        user.setId(1L);
+        byte[] bytes = SessionCodec.encode(user);
+        bytes[0] = 9;
+        assertThrows(IllegalArgumentException.class, () -> SessionCodec.decode(bytes));
+    }
+
+    @Test
+    void newTokenIsShortAndNotLegacy() {
+        String token = SessionCodec.newToken();
+        // 16字节的base64url，不带填充
+        assertEquals(22, token.length());
+        assertTrue(token.matches("[A-Za-z0-9_-]+"));
+        assertFalse(SessionCodec.isLegacyToken(token));
+        assertTrue(SessionCodec.isLegacyToken("0123456789abcdef0123456789abcdef"));
+        assertNotEquals(token, SessionCodec.newToken());
+    }
+}
@@ -0,0 +1,106 @@
+package com.hmdp;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.utils.SignedTokenSessions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 签名token：签发、校验、篡改、吊销，以及signed模式下对密钥的检查
+ * redis用mock代替，吊销只验证本地集合
+ */
+class SignedTokenSessionsTest {
+
+    private static final String SECRET = "0123456789abcdef0123456789abcdef";
+
+    private final List<SignedTokenSessions> created = new ArrayList<>();
+
+    @AfterEach
+    void destroy() {
+        created.forEach(sessions -> ReflectionTestUtils.invokeMethod(sessions, "destroy"));
+    }
+
+    @Test
+    void issueAndVerify() {
+        SignedTokenSessions sessions = sessions("signed", SECRET);
+        String token = sessions.issue(user());
+        assertTrue(SignedTokenSessions.isSignedToken(token));
+        SignedTokenSessions.Claims claims = sessions.verify(token);
+        assertNotNull(claims);
+        assertEquals(user(), claims.getUser());
+        // 其他节点使用相同的密钥也能校验
+        assertNotNull(sessions("signed", SECRET).verify(token));
+    }
+
+    @Test
+    void rejectsTamperedToken() {
+        SignedTokenSessions sessions = sessions("signed", SECRET);
+        String token = sessions.issue(user());
+        int dot = token.indexOf('.');
+        // 改载荷的一个字符
+        char c = token.charAt(1);
+        assertNull(sessions.verify(token.charAt(0) + (c == 'A' ? "B" : "A") + token.substring(2)));
+        // 改签名的一个字符
+        char s = token.charAt(dot + 1);
+        assertNull(sessions.verify(token.substring(0, dot + 1) + (s == 'A' ? 'B' : 'A') + token.substring(dot + 2)));
+        // 不是base64
+        assertNull(sessions.verify("!!." + token.substring(dot + 1)));
+        // 其他密钥签发的token
+        assertNull(sessions.verify(sessions("signed", SECRET.replace('0', 'x')).issue(user())));
+    }
+
+    @Test
+    void revokeInvalidatesSession() {
+        SignedTokenSessions sessions = sessions("signed", SECRET);
+        String token = sessions.issue(user());
+        sessions.revoke(token);
+        assertNull(sessions.verify(token));
+        // 同一节点上其他会话不受影响
+        assertNotNull(sessions.verify(sessions.issue(user())));
+    }
+
+    @Test
+    void signedModeRequiresStrongSecret() {
+        assertThrows(IllegalStateException.class, () -> sessions("signed", ""));
+        assertThrows(IllegalStateException.class, () -> sessions("signed", "too-short"));
+        // redis模式不签发签名token，不要求配置密钥
+        assertNotNull(sessions("redis", ""));
+    }
+
+    @SuppressWarnings("unchecked")
+    private SignedTokenSessions sessions(String mode, String secret) {
+        StringRedisTemplate redisTemplate = mock(StringRedisTemplate.class);
+        when(redisTemplate.opsForZSet()).thenReturn(mock(ZSetOperations.class));
+        SignedTokenSessions sessions = new SignedTokenSessions(redisTemplate, mock(RedisMessageListenerContainer.class));
+        ReflectionTestUtils.setField(sessions, "mode", mode);
+        ReflectionTestUtils.setField(sessions, "secret", secret);
+        ReflectionTestUtils.setField(sessions, "renewBelowMinutes", 25L);
+        ReflectionTestUtils.setField(sessions, "syncSeconds", 60L);
+        created.add(sessions);
+        ReflectionTestUtils.invokeMethod(sessions, "init");
+        return sessions;
+    }
+
+    private static UserDTO user() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("可可今天不吃肉");
+        user.setIcon("/imgs/icons/kkjtbcr.jpg");
+        return user;
+    }
+}
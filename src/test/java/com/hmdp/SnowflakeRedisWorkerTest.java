@@ -0,0 +1,70 @@
+package com.hmdp;
+
+import com.hmdp.utils.SnowflakeRedisWorker;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * 雪花算法id的位布局：31位秒级时间戳 | 10位毫秒 | 10位节点id | 12位序列号
+ * 不访问redis，直接设置租到的节点id和租约截止时间
+ */
+class SnowflakeRedisWorkerTest {
+
+    private static final long BEGIN_TIMESTAMP = 1672531200L;
+
+    @Test
+    void bitLayout() {
+        SnowflakeRedisWorker worker = worker(777, TimeUnit.MINUTES.toMillis(1));
+        long before = localSeconds();
+        long previous = 0;
+        Set<Long> ids = new HashSet<>();
+        // 超过一毫秒的序列号上限，覆盖进位到下一毫秒
+        for (int i = 0; i < 10000; i++) {
+            long id = worker.nextId("order");
+            assertTrue(id > previous, "id必须递增");
+            previous = id;
+            ids.add(id);
+            assertEquals(777, (id >>> 12) & 0x3FF);
+            assertTrue(((id >>> 22) & 0x3FF) < 1000);
+        }
+        long after = localSeconds();
+        assertEquals(10000, ids.size());
+        long timestamp = previous >>> 32;
+        assertTrue(timestamp >= before - BEGIN_TIMESTAMP && timestamp <= after - BEGIN_TIMESTAMP);
+    }
+
+    @Test
+    void refusesWithoutLease() {
+        // 租约在 lease-margin-ms 内到期
+        SnowflakeRedisWorker expiring = worker(1, 1000);
+        assertThrows(IllegalStateException.class, () -> expiring.nextId("order"));
+        // 租约丢失
+        SnowflakeRedisWorker lost = worker(-1, TimeUnit.MINUTES.toMillis(1));
+        assertThrows(IllegalStateException.class, () -> lost.nextId("order"));
+    }
+
+    private static SnowflakeRedisWorker worker(long nodeId, long leaseMillis) {
+        SnowflakeRedisWorker worker = new SnowflakeRedisWorker(mock(StringRedisTemplate.class));
+        ReflectionTestUtils.setField(worker, "leaseMarginMillis", 5000L);
+        ReflectionTestUtils.setField(worker, "nodeId", nodeId);
+        ReflectionTestUtils.setField(worker, "leaseDeadline", System.currentTimeMillis() + leaseMillis);
+        return worker;
+    }
+
+    // 与号段模式一致，本地时间当作UTC
+    private static long localSeconds() {
+        long now = System.currentTimeMillis();
+        return (now + TimeZone.getDefault().getOffset(now)) / 1000;
+    }
+}
@@ -0,0 +1,71 @@
+package com.hmdp;
+
+import com.hmdp.utils.TokenBucket;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 令牌桶：使用模拟时钟验证突发、补充速率和容量上限
+ */
+class TokenBucketTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    void burstUpToCapacity() {
+        TokenBucket bucket = new TokenBucket(10, 5, clock::get);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(1));
+        }
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    void refillsAtRate() {
+        TokenBucket bucket = new TokenBucket(10, 5, clock::get);
+        assertTrue(bucket.tryAcquire(5));
+        // 10个/秒，99ms还不够一个
+        advance(99);
+        assertFalse(bucket.tryAcquire(1));
+        advance(1);
+        assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(1));
+        // 长时间空闲也最多积攒 capacity 个
+        advance(TimeUnit.MINUTES.toMillis(1));
+        assertEquals(5, bucket.available(), 1e-9);
+    }
+
+    @Test
+    void oversizedRequestCountsAsCapacity() {
+        TokenBucket bucket = new TokenBucket(10, 5, clock::get);
+        assertTrue(bucket.tryAcquire(100));
+        assertEquals(0, bucket.available(), 1e-9);
+    }
+
+    @Test
+    void timedAcquireGivesUpWhenTooLong() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(10, 1, clock::get);
+        assertTrue(bucket.tryAcquire(1));
+        // 下一个令牌在100ms后，等待50ms不够，不会真的休眠
+        assertFalse(bucket.tryAcquire(1, 50, TimeUnit.MILLISECONDS));
+        advance(100);
+        assertTrue(bucket.tryAcquire(1, 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void rejectsInvalidArguments() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(1, 0));
+    }
+
+    private void advance(long millis) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}